@@ -0,0 +1,135 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 mieslingert.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.mieslinger.nsrrsetd.benchmarks;
+
+import de.mieslinger.nsrrsetd.Main;
+import de.mieslinger.nsrrsetd.resolver.DelegationLookup;
+import de.mieslinger.nsrrsetd.resolver.HedgedQuery;
+import de.mieslinger.nsrrsetd.resolver.QueryEngine;
+import de.mieslinger.nsrrsetd.servlets.ServletGetDelegatingNSSet;
+import de.mieslinger.nsrrsetd.store.LatencyStore;
+import de.mieslinger.nsrrsetd.store.ResponseCache;
+import de.mieslinger.nsrrsetd.store.ZoneCutTrie;
+import java.lang.reflect.Field;
+import java.net.InetAddress;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.eclipse.jetty.server.LocalConnector;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xbill.DNS.Name;
+
+/**
+ * GET /getDelegatingNSSet through Jetty's LocalConnector, so the request
+ * goes through the HTTP parser, the servlet and the JSON writer without a
+ * socket. The TLD server of "bench." is a StubDnsServer on loopback.
+ *
+ * cached=true asks for the same zone every time and is answered from the
+ * response cache. cached=false disables the cache and asks for a new zone
+ * on every request, which goes to the stub TLD server.
+ *
+ * @author mieslingert
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class ApiBenchmark {
+
+    @Param({"true", "false"})
+    public boolean cached;
+
+    private StubDnsServer tld;
+    private QueryEngine engine;
+    private ScheduledExecutorService timer;
+    private Server jetty;
+    private LocalConnector connector;
+    private final AtomicLong zones = new AtomicLong();
+
+    @Setup
+    public void setup() throws Exception {
+        tld = new StubDnsServer(StubDnsServer::referral);
+        Name bench = Name.fromConstantString("bench.");
+
+        LatencyStore store = new LatencyStore(null);
+        store.storeLatency(bench, InetAddress.getLoopbackAddress(), 100_000, System.currentTimeMillis());
+        ZoneCutTrie cuts = new ZoneCutTrie();
+        cuts.setDelegations(Collections.singleton(bench));
+        engine = new QueryEngine("bench", 2);
+        timer = Executors.newSingleThreadScheduledExecutor();
+        HedgedQuery hedged = new HedgedQuery(engine, timer, Duration.ofSeconds(2), tld.getPort());
+        ResponseCache cache = new ResponseCache(cached ? 10000 : 0, 86400);
+        DelegationLookup lookup = new DelegationLookup(store, cache, hedged, null, cuts, cut -> {
+        });
+        // the servlet takes its lookup from Main, like in the daemon
+        Field f = Main.class.getDeclaredField("delegationLookup");
+        f.setAccessible(true);
+        f.set(null, lookup);
+
+        jetty = new Server();
+        connector = new LocalConnector(jetty);
+        jetty.addConnector(connector);
+        ServletContextHandler context = new ServletContextHandler();
+        context.setContextPath("/");
+        context.addServlet(ServletGetDelegatingNSSet.class, "/getDelegatingNSSet/*").setAsyncSupported(true);
+        jetty.setHandler(context);
+        jetty.start();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        jetty.stop();
+        engine.close();
+        timer.shutdownNow();
+        tld.close();
+    }
+
+    @Benchmark
+    public String getDelegatingNSSet() throws Exception {
+        String zone = cached ? "example.bench" : "z" + zones.incrementAndGet() + ".bench";
+        return connector.getResponse("GET /getDelegatingNSSet/" + zone + " HTTP/1.1\r\n"
+                + "Host: localhost\r\n"
+                + "\r\n");
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 mieslingert.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.mieslinger.nsrrsetd.benchmarks;
+
+import de.mieslinger.nsrrsetd.store.LatencyIndex;
+import de.mieslinger.nsrrsetd.store.LatencyStore;
+import java.net.InetAddress;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xbill.DNS.Name;
+
+/**
+ * LatencyStore with 1500 TLDs of 8 servers each, without database.
+ *
+ * storeLatency alone, and the "mixed" group: three threads storing probe
+ * results while a fourth picks the best server of random TLDs like the API
+ * does.
+ *
+ * @author mieslingert
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LatencyStoreBenchmark {
+
+    static final int TLDS = 1500;
+    static final int SERVERS = 8;
+
+    private LatencyStore store;
+    private Name[] tlds;
+    private InetAddress[] servers;
+
+    @Setup
+    public void setup() throws Exception {
+        store = new LatencyStore(null);
+        tlds = new Name[TLDS];
+        servers = new InetAddress[SERVERS];
+        for (int j = 0; j < SERVERS; j++) {
+            servers[j] = InetAddress.getByAddress(new byte[]{10, 0, 0, (byte) (j + 1)});
+        }
+        for (int i = 0; i < TLDS; i++) {
+            tlds[i] = Name.fromString("tld" + i + ".");
+            for (int j = 0; j < SERVERS; j++) {
+                store.storeLatency(tlds[i], servers[j], 10_000_000L * (j + 1), System.currentTimeMillis());
+            }
+        }
+    }
+
+    @Benchmark
+    public void storeLatency() {
+        store(ThreadLocalRandom.current());
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public void mixedStoreLatency() {
+        store(ThreadLocalRandom.current());
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public InetAddress mixedBestServer() {
+        LatencyIndex.Ranking ranking = store.getIndex().get(tlds[ThreadLocalRandom.current().nextInt(TLDS)]);
+        return ranking == null ? null : ranking.best();
+    }
+
+    private void store(ThreadLocalRandom r) {
+        store.storeLatency(tlds[r.nextInt(TLDS)], servers[r.nextInt(SERVERS)],
+                1_000_000L + r.nextInt(100_000_000), System.currentTimeMillis());
+    }
+}
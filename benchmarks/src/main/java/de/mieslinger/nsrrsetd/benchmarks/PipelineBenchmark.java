@@ -0,0 +1,186 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 mieslingert.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.mieslinger.nsrrsetd.benchmarks;
+
+import de.mieslinger.nsrrsetd.background.DelegationNSSetLookup;
+import de.mieslinger.nsrrsetd.background.LookupZone;
+import de.mieslinger.nsrrsetd.background.NSAAAALookup;
+import de.mieslinger.nsrrsetd.background.NSALookup;
+import de.mieslinger.nsrrsetd.background.Stage;
+import de.mieslinger.nsrrsetd.resolver.HostAddressCache;
+import de.mieslinger.nsrrsetd.resolver.QueryEngine;
+import de.mieslinger.nsrrsetd.store.DelegationIndex;
+import de.mieslinger.nsrrsetd.store.LatencyStore;
+import de.mieslinger.nsrrsetd.threads.WorkerThreads;
+import de.mieslinger.nsrrsetd.transfer.QueryIpForZone;
+import de.mieslinger.nsrrsetd.transfer.QueryNsForIP;
+import java.net.InetAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.NSRecord;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+
+/**
+ * One warm-up cycle over a synthetic root zone of 1500 TLDs with two
+ * nameservers each: NS lookup, A and AAAA lookups of the nameservers and
+ * the probes of their addresses, with the stage sizes and limits of the
+ * daemon's defaults.
+ *
+ * The resolver and the TLD servers are StubDnsServers on loopback. Every
+ * nameserver resolves to 127.0.0.1 and has no AAAA. Like in the daemon the
+ * host address cache is kept between cycles, so after the first cycle only
+ * the NS lookups go to the resolver.
+ *
+ * @author mieslingert
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(1)
+public class PipelineBenchmark {
+
+    static final int TLDS = 1500;
+    static final int STAGE_CAPACITY = 1000;
+
+    private StubDnsServer resolver;
+    private StubDnsServer tld;
+    private QueryEngine engine;
+    private DelegationIndex rootZone;
+    private Stage<Name> stageDelegation;
+    private Stage<QueryNsForIP> stageALookup;
+    private Stage<QueryNsForIP> stageAAAALookup;
+    private Stage<QueryIpForZone> stageDNSCheck;
+    private final List<Thread> workers = new ArrayList<>();
+    private final List<ExecutorService> completions = new ArrayList<>();
+
+    @Setup
+    public void setup() throws Exception {
+        resolver = new StubDnsServer(PipelineBenchmark::resolve);
+        tld = new StubDnsServer(StubDnsServer::referral);
+        rootZone = syntheticRootZone();
+
+        stageDelegation = new Stage<>("delegation", STAGE_CAPACITY);
+        stageALookup = new Stage<>("A", STAGE_CAPACITY);
+        stageAAAALookup = new Stage<>("AAAA", STAGE_CAPACITY);
+        stageDNSCheck = new Stage<>("DNSCheck", STAGE_CAPACITY);
+        engine = new QueryEngine("bench", 4);
+        HostAddressCache hostCache = new HostAddressCache(engine, resolver.getAddress(), Duration.ofSeconds(4));
+        LatencyStore store = new LatencyStore(null);
+
+        workers.add(WorkerThreads.start("DelegationNSSetLookup", new DelegationNSSetLookup(stageDelegation,
+                stageALookup, stageAAAALookup, engine, resolver.getAddress(), 4, 12, completion("DelegationNSSetLookup"))));
+        workers.add(WorkerThreads.start("NSALookup", new NSALookup(stageALookup, stageDNSCheck,
+                hostCache, 50, completion("NSALookup"))));
+        workers.add(WorkerThreads.start("NSAAAALookup", new NSAAAALookup(stageAAAALookup, stageDNSCheck,
+                hostCache, 50, completion("NSAAAALookup"))));
+        workers.add(WorkerThreads.start("DNSCheck", new LookupZone(stageDNSCheck,
+                engine, store, Duration.ofMillis(2000), tld.getPort(), 100, completion("DNSCheck"))));
+    }
+
+    private ExecutorService completion(String name) {
+        ExecutorService e = Executors.newSingleThreadExecutor(WorkerThreads.factory(name + "-completion"));
+        completions.add(e);
+        return e;
+    }
+
+    /**
+     * tld0. to tld1499., each delegated to ns1 and ns2 below itself.
+     */
+    private static DelegationIndex syntheticRootZone() throws Exception {
+        DelegationIndex.Builder builder = new DelegationIndex.Builder();
+        for (int i = 0; i < TLDS; i++) {
+            Name delegation = Name.fromString("tld" + i + ".");
+            for (int j = 1; j <= 2; j++) {
+                builder.add(new NSRecord(delegation, DClass.IN, 172800, Name.fromString("ns" + j, delegation)));
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * The resolver: NS of a TLD, 127.0.0.1 for every A and no AAAA.
+     */
+    private static Message resolve(Message query) {
+        Message answer = StubDnsServer.answerTo(query);
+        Name name = query.getQuestion().getName();
+        switch (query.getQuestion().getType()) {
+            case Type.NS:
+                return StubDnsServer.referralAsAnswer(query);
+            case Type.A:
+                answer.addRecord(new ARecord(name, DClass.IN, 86400, InetAddress.getLoopbackAddress()), Section.ANSWER);
+                return answer;
+            default:
+                return answer;
+        }
+    }
+
+    @Benchmark
+    public void cycle() throws Exception {
+        for (Name delegation : rootZone.getDelegations()) {
+            stageDelegation.put(delegation);
+        }
+        // same order as the daemon: a stage is idle only after handing
+        // everything to its successors
+        for (Stage<?> stage : new Stage<?>[]{stageDelegation, stageALookup, stageAAAALookup, stageDNSCheck}) {
+            if (!stage.awaitIdle(60, TimeUnit.SECONDS)) {
+                throw new IllegalStateException(stage.getName() + " stage did not finish");
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        for (Thread t : workers) {
+            t.interrupt();
+        }
+        for (ExecutorService e : completions) {
+            e.shutdownNow();
+        }
+        engine.close();
+        resolver.close();
+        tld.close();
+    }
+}
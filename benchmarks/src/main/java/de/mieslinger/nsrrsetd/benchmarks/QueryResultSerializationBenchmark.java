@@ -0,0 +1,122 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 mieslingert.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.mieslinger.nsrrsetd.benchmarks;
+
+import com.google.gson.Gson;
+import de.mieslinger.nsrrsetd.transfer.QueryResult;
+import de.mieslinger.nsrrsetd.transfer.QueryResultJson;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Writing one /getDelegatingNSSet answer: a new Gson per request as the
+ * servlet used to do, versus QueryResultJson.
+ *
+ * Run with -prof gc to see allocations per request (gc.alloc.rate.norm).
+ *
+ * @author mieslingert
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueryResultSerializationBenchmark {
+
+    private QueryResult qr;
+    private OutputStream out;
+
+    @Setup
+    public void setup(Blackhole bh) {
+        qr = delegated();
+        out = new OutputStream() {
+            @Override
+            public void write(int b) {
+                bh.consume(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                bh.consume(b);
+                bh.consume(len);
+            }
+        };
+    }
+
+    /**
+     * A typical answer: four name servers, two of them with glue.
+     */
+    static QueryResult delegated() {
+        QueryResult qr = new QueryResult();
+        qr.setZone("example.de.");
+        qr.setQueryTime(12);
+        qr.setStatus("Delegated");
+        qr.setDelegation("example.de.");
+        qr.setRrSet(new ArrayList<>(Arrays.asList("a.nic.example.de.", "b.nic.example.de.",
+                "ns1.example.net.", "ns2.example.net.")));
+        Map<String, List<String>> glue = new LinkedHashMap<>();
+        glue.put("a.nic.example.de.", Arrays.asList("192.0.2.1", "2001:db8::1"));
+        glue.put("b.nic.example.de.", Arrays.asList("198.51.100.1", "2001:db8:1::1"));
+        qr.setGlue(glue);
+        qr.setTtl(86400);
+        qr.setQueriedServer("194.0.0.53");
+        qr.setAnsweredServer("194.0.0.53");
+        qr.setServersTried(1);
+        return qr;
+    }
+
+    @Benchmark
+    public void gson() throws IOException {
+        PrintWriter pw = new PrintWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        Gson gson = new Gson();
+        pw.print(gson.toJson(qr));
+        pw.flush();
+    }
+
+    @Benchmark
+    public void queryResultJson() throws IOException {
+        QueryResultJson.get().write(qr).writeTo(out);
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 mieslingert.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.mieslinger.nsrrsetd.benchmarks;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.function.Function;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.NSRecord;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.NameTooLongException;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+
+/**
+ * UDP DNS server on a loopback port for the benchmarks. One thread reads a
+ * query, asks the handler for the answer and sends it right away, so it
+ * adds as little latency as possible to what is measured.
+ *
+ * @author mieslingert
+ */
+public class StubDnsServer implements Closeable {
+
+    private final DatagramChannel channel;
+    private final Function<Message, Message> handler;
+    private final Thread thread;
+
+    /**
+     * @param handler builds the answer to a query, null to drop it
+     */
+    public StubDnsServer(Function<Message, Message> handler) throws IOException {
+        this.handler = handler;
+        this.channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        this.thread = new Thread(this::serve, "StubDnsServer-" + getPort());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public int getPort() {
+        try {
+            return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public InetSocketAddress getAddress() {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), getPort());
+    }
+
+    private void serve() {
+        ByteBuffer buf = ByteBuffer.allocate(65535);
+        while (channel.isOpen()) {
+            try {
+                buf.clear();
+                SocketAddress client = channel.receive(buf);
+                buf.flip();
+                Message answer = handler.apply(new Message(buf));
+                if (answer != null) {
+                    channel.send(ByteBuffer.wrap(answer.toWire()), client);
+                }
+            } catch (IOException e) {
+                if (!channel.isOpen()) {
+                    return;
+                }
+            } catch (RuntimeException e) {
+                // a query the handler could not make sense of
+            }
+        }
+    }
+
+    /**
+     * @return an answer to query with its ID, question and the QR flag set
+     */
+    public static Message answerTo(Message query) {
+        Message answer = new Message(query.getHeader().getID());
+        answer.getHeader().setFlag(Flags.QR);
+        if (query.getHeader().getFlag(Flags.RD)) {
+            answer.getHeader().setFlag(Flags.RD);
+            answer.getHeader().setFlag(Flags.RA);
+        }
+        answer.addRecord(query.getQuestion(), Section.QUESTION);
+        return answer;
+    }
+
+    /**
+     * A TLD server: every query is answered with a referral to
+     * ns1/ns2.&lt;zone&gt; for the zone asked for.
+     */
+    public static Message referral(Message query) {
+        return nameservers(query, Section.AUTHORITY);
+    }
+
+    /**
+     * A resolver: the same NS set as referral(), in the answer section.
+     */
+    public static Message referralAsAnswer(Message query) {
+        return nameservers(query, Section.ANSWER);
+    }
+
+    private static Message nameservers(Message query, int section) {
+        Message answer = answerTo(query);
+        Name zone = query.getQuestion().getName();
+        for (int i = 1; i <= 2; i++) {
+            try {
+                Record ns = new NSRecord(zone, DClass.IN, 86400, Name.concatenate(Name.fromConstantString("ns" + i), zone));
+                answer.addRecord(ns, section);
+            } catch (NameTooLongException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+        return answer;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        thread.interrupt();
+    }
+}
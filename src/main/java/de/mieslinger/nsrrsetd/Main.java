@@ -23,12 +23,24 @@
  */
 package de.mieslinger.nsrrsetd;
 
+import de.mieslinger.nsrrsetd.store.DelegationIndex;
 import de.mieslinger.nsrrsetd.store.LatencyStore;
+import de.mieslinger.nsrrsetd.store.ResponseCache;
+import de.mieslinger.nsrrsetd.store.Snapshot;
+import de.mieslinger.nsrrsetd.store.ZoneCutTrie;
 import de.mieslinger.nsrrsetd.background.DelegationNSSetLookup;
 import de.mieslinger.nsrrsetd.background.LookupZone;
 import de.mieslinger.nsrrsetd.background.NSAAAALookup;
 import de.mieslinger.nsrrsetd.background.NSALookup;
+import de.mieslinger.nsrrsetd.background.RootZoneRefresh;
+import de.mieslinger.nsrrsetd.background.Stage;
+import de.mieslinger.nsrrsetd.metrics.Histogram;
+import de.mieslinger.nsrrsetd.metrics.HistogramFamily;
+import de.mieslinger.nsrrsetd.server.DnsServer;
+import de.mieslinger.nsrrsetd.sim.SimWorld;
+import de.mieslinger.nsrrsetd.servlets.ServletBulkDelegatingNSSet;
 import de.mieslinger.nsrrsetd.servlets.ServletGetDelegatingNSSet;
+import de.mieslinger.nsrrsetd.servlets.ServletMetrics;
 import de.mieslinger.nsrrsetd.servlets.ServletStatistics;
 import de.mieslinger.nsrrsetd.transfer.QueryIpForZone;
 import de.mieslinger.nsrrsetd.transfer.QueryNsForIP;
@@ -36,18 +48,40 @@ import com.sampullara.cli.Args;
 import com.sampullara.cli.Argument;
 import de.mieslinger.nsrrsetd.servlets.ServletRoot;
 import de.mieslinger.nsrrsetd.servlets.ServletStatus;
+import de.mieslinger.nsrrsetd.resolver.DelegationLookup;
+import de.mieslinger.nsrrsetd.resolver.HedgedQuery;
+import de.mieslinger.nsrrsetd.resolver.HostAddressCache;
+import de.mieslinger.nsrrsetd.resolver.QueryEngine;
+import de.mieslinger.nsrrsetd.threads.VirtualThreadPool;
+import de.mieslinger.nsrrsetd.threads.WorkerThreads;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.eclipse.jetty.server.HttpConnectionFactory;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.ContextHandlerCollection;
 import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xbill.DNS.Name;
-import org.xbill.DNS.Record;
-import org.xbill.DNS.Type;
-import org.xbill.DNS.ZoneTransferIn;
 
 /**
  *
@@ -58,6 +92,10 @@ public class Main {
     @Argument(alias = "s", description = "AXFR source for '.' Zone")
     private static String axfrSource = "ns-anyslv.ui-dns.com";
 
+    @Argument(alias = "sp", description = "port of the AXFR source (53 default)")
+    private static String strAxfrPort = "53";
+    private static int numAxfrPort;
+
     @Argument(alias = "sr", description = "AXFR retries")
     private static String strAxfrRetries = "3";
     private static int numAxfrRetries;
@@ -65,32 +103,60 @@ public class Main {
     @Argument(alias = "r", description = "Resolver to query")
     private static String resolverToWarm = "10.2.215.21";
 
-    @Argument(alias = "nt", description = "Number of Threads for NS lookups (6 by default)")
+    @Argument(alias = "rp", description = "port of the resolver (53 default)")
+    private static String strResolverPort = "53";
+    private static int numResolverPort;
+
+    @Argument(alias = "tp", description = "port of the TLD servers (53 default)")
+    private static String strTldPort = "53";
+    private static int numTldPort;
+
+    @Argument(alias = "nt", description = "max. NS lookups in flight (12 by default)")
     private static String strThreadsNSLookup = "12";
     private static int numThreadsNSLookup;
 
-    @Argument(alias = "at", description = "Number of Threads for A lookups (12 by default)")
+    @Argument(alias = "at", description = "max. A lookups in flight (50 by default)")
     private static String strThreadsALookup = "50";
     private static int numThreadsALookup;
 
-    @Argument(alias = "aaaat", description = "Number of Threads for AAAA lookups (12 by default, 0 for disable)")
+    @Argument(alias = "aaaat", description = "max. AAAA lookups in flight (50 by default, 0 for disable)")
     private static String strThreadsAAAALookup = "50";
     private static int numThreadsAAAALookup;
 
-    @Argument(alias = "dnst", description = "Number of Threads for DNS Check (50 default, 0 for disable))")
+    @Argument(alias = "dnst", description = "max. DNS Check queries in flight (100 default, 0 for disable)")
     private static String strThreadsDNSCheck = "100";
     private static int numThreadsDNSCheck;
 
+    @Argument(alias = "qs", description = "capacity of each pipeline stage queue (1000 default)")
+    private static String strStageCapacity = "1000";
+    private static int numStageCapacity;
+
+    @Argument(alias = "g", description = "use glue from the root zone for TLD nameserver addresses (default disabled)")
+    private static boolean useGlue = false;
+
     @Argument(alias = "t", description = "resolver timeout (4 seconds default)")
     private static String strTimeout = "4";
     private static int numTimeout;
 
-    @Argument(alias = "a", description = "retransfer root zone after n seconds (86400 default)")
+    @Argument(alias = "pt", description = "TLD server probe timeout in milliseconds (2000 default)")
+    private static String strProbeTimeout = "2000";
+    private static int numProbeTimeout;
+
+    @Argument(alias = "a", description = "full retransfer of root zone after n seconds (86400 default)")
     private static String strRootZoneMaxAge = "86400";
 
+    @Argument(alias = "sc", description = "check SOA serial of root zone every n seconds, IXFR on change (300 default)")
+    private static String strSoaCheck = "300";
+
     @Argument(alias = "bc", description = "background checking of NS/A/AAAA every n seconds (1200s default)")
     private static String strBackgroundCheck = "1200";
 
+    @Argument(alias = "db", description = "mirror latency data into an in-memory H2 database (default disabled)")
+    private static boolean useDb = false;
+
+    @Argument(alias = "sf", description = "snapshot file of root zone and latency data for warm restarts (default none)")
+    private static String snapshotFile = "";
+
     /* somehow set -Dorg.slf4j.simpleLogger.defaultLogLevel=debug with this
      * @Argument(alias = "d", description = "enable debug")
      * private static boolean debug = false;
@@ -98,27 +164,96 @@ public class Main {
     @Argument(alias = "he", description = "enable http (default disabled)")
     private static boolean httpEnabled = false;
 
+    @Argument(value = "virtual-threads", alias = "vt", prefix = "--", description = "run workers and jetty on virtual threads (needs JDK 21)")
+    private static boolean virtualThreads = false;
+
+    @Argument(alias = "cs", description = "max. entries of the API response cache (10000 default, 0 for disable)")
+    private static String strResponseCacheSize = "10000";
+
+    @Argument(alias = "ct", description = "max. TTL of API response cache entries in seconds (86400 default)")
+    private static String strResponseCacheTtl = "86400";
+
+    @Argument(alias = "ad", description = "API deadline for asking the TLD servers in milliseconds (3000 default)")
+    private static String strApiDeadline = "3000";
+    private static int numApiDeadline;
+
+    @Argument(alias = "bw", description = "max. lookups in flight per bulk API request (256 default)")
+    private static String strBulkWindow = "256";
+    private static int numBulkWindow;
+
     @Argument(alias = "hp", description = "http port (default 8989)")
     private static String strHttpPort = "8989";
     private static int numHttpPort;
 
-    private static final ConcurrentLinkedQueue<Record> queueDelegation = new ConcurrentLinkedQueue<>();
-    private static final ConcurrentLinkedQueue<QueryNsForIP> queueALookup = new ConcurrentLinkedQueue<>();
-    private static final ConcurrentLinkedQueue<QueryNsForIP> queueAAAALookup = new ConcurrentLinkedQueue<>();
-    private static final ConcurrentLinkedQueue<QueryIpForZone> queueDNSCheck = new ConcurrentLinkedQueue<>();
+    @Argument(alias = "dp", description = "port answering NS queries over DNS (default 0: disabled)")
+    private static String strDnsPort = "0";
+    private static int numDnsPort;
 
-    private static Name lastSeenName = null;
-    private static List records = null;
+    @Argument(alias = "da", description = "address answering NS queries over DNS (default 127.0.0.1, there is no rate limiting)")
+    private static String dnsAddress = "127.0.0.1";
+
+    @Argument(alias = "mp", description = "admin http port for /status and /statistics (default 0: on the http port)")
+    private static String strAdminPort = "0";
+    private static int numAdminPort;
+
+    @Argument(alias = "jt", description = "max. jetty threads for the http port (200 default, ignored with virtual threads)")
+    private static String strJettyThreads = "200";
+    private static int numJettyThreads;
+
+    @Argument(alias = "ja", description = "jetty acceptor threads (-1 default: jetty chooses)")
+    private static String strJettyAcceptors = "-1";
+    private static int numJettyAcceptors;
+
+    @Argument(alias = "js", description = "jetty selector threads (-1 default: jetty chooses)")
+    private static String strJettySelectors = "-1";
+    private static int numJettySelectors;
+
+    @Argument(alias = "sim", description = "run against a simulated DNS world on 127.0.0.0/8 instead of -s and -r (default disabled)")
+    private static boolean simulate = false;
+
+    @Argument(alias = "simt", description = "TLDs of the simulated root zone (1500 default)")
+    private static String strSimTlds = "1500";
+
+    @Argument(alias = "simh", description = "simulated TLD servers, every TLD gets 4 of them (300 default)")
+    private static String strSimHosts = "300";
+
+    @Argument(alias = "siml", description = "latency range of the simulated TLD servers in ms (5-250 default)")
+    private static String simLatency = "5-250";
+
+    @Argument(alias = "simf", description = "simulated faults in percent: lost queries, late answers, unreachable servers (1,1,5 default)")
+    private static String simFaults = "1,1,5";
+
+    @Argument(alias = "simseed", description = "seed of the simulated world (1 default)")
+    private static String strSimSeed = "1";
+
+    private static Stage<Name> stageDelegation;
+    private static Stage<QueryNsForIP> stageALookup;
+    private static Stage<QueryNsForIP> stageAAAALookup;
+    private static Stage<QueryIpForZone> stageDNSCheck;
+
+    private static volatile DelegationIndex delegationIndex;
+    private static final ZoneCutTrie zoneCuts = new ZoneCutTrie();
     private static Logger logger = LoggerFactory.getLogger(Main.class);
-    private static final String jdbcUrl = "jdbc:h2:mem:myDB;DB_CLOSE_DELAY=-1";
+    private static final String jdbcUrl = "jdbc:h2:mem:myDB;DB_CLOSE_DELAY=-1;DB_CLOSE_ON_EXIT=FALSE";
     private static Connection dbConn;
     private static LatencyStore s;
-    private static long lastTransfer = 0;
+    private static RootZoneRefresh rootZone;
     private static Server jetty;
+    private static QueryEngine engine;
+    private static HostAddressCache hostCache;
+    private static ResponseCache responseCache;
+    private static HedgedQuery hedgedQuery;
+    private static DelegationLookup delegationLookup;
+    private static DnsServer dnsServer;
+    private static SimWorld simWorld;
+    private static LookupZone lookupZone;
     private static boolean doAAAAlookup = true;
     private static boolean doQueryTLDserver = true;
-    public static boolean doStoreResults = true;
     private static boolean tldCacheComplete = false;
+    private static final int ADMIN_THREADS = 8;
+    private static final Histogram cycleDuration = Histogram.duration();
+    private static final HistogramFamily apiLatency = new HistogramFamily("outcome", Histogram::latency,
+            "noerror", "nxdomain", "error", "cached", "timeout", "invalid");
 
     /**
      * @param args the command line arguments
@@ -131,6 +266,15 @@ public class Main {
         // private static String strAxfrRetries = "3";
         numAxfrRetries = Integer.parseInt(strAxfrRetries);
 
+        //private static String strAxfrPort = 53;
+        numAxfrPort = Integer.parseInt(strAxfrPort);
+
+        //private static String strResolverPort = 53;
+        numResolverPort = Integer.parseInt(strResolverPort);
+
+        //private static String strTldPort = 53;
+        numTldPort = Integer.parseInt(strTldPort);
+
         //private static String strThreadsNSLookup = 12;
         numThreadsNSLookup = Integer.parseInt(strThreadsNSLookup);
 
@@ -143,148 +287,505 @@ public class Main {
         //private static String strThreadsDNSCheck = 100;
         numThreadsDNSCheck = Integer.parseInt(strThreadsDNSCheck);
 
+        //private static String strStageCapacity = 1000;
+        numStageCapacity = Integer.parseInt(strStageCapacity);
+
         //private static String strTimeout = 4;
         numTimeout = Integer.parseInt(strTimeout);
 
+        //private static String strProbeTimeout = 2000;
+        numProbeTimeout = Integer.parseInt(strProbeTimeout);
+
         //private static String strRootZoneMaxAge = 86400;
         int numRootZoneMaxAge = Integer.parseInt(strRootZoneMaxAge) * 1000;
 
         //private static String strBackgroundCheck = 1200;
         int numBackgroundCheck = Integer.parseInt(strBackgroundCheck);
 
+        //private static String strSoaCheck = 300;
+        int numSoaCheck = Integer.parseInt(strSoaCheck);
+
+        //private static String strResponseCacheSize = 10000;
+        //private static String strResponseCacheTtl = 86400;
+        responseCache = new ResponseCache(Integer.parseInt(strResponseCacheSize), Long.parseLong(strResponseCacheTtl));
+
+        //private static String strApiDeadline = 3000;
+        numApiDeadline = Integer.parseInt(strApiDeadline);
+
+        //private static String strBulkWindow = 256;
+        numBulkWindow = Integer.parseInt(strBulkWindow);
+
         //String strHttpPort = 8989;
         numHttpPort = Integer.parseInt(strHttpPort);
 
+        //private static String strDnsPort = 0;
+        numDnsPort = Integer.parseInt(strDnsPort);
+
+        //private static String strAdminPort = 0;
+        numAdminPort = Integer.parseInt(strAdminPort);
+
+        //private static String strJettyThreads = 200;
+        numJettyThreads = Integer.parseInt(strJettyThreads);
+
+        //private static String strJettyAcceptors = -1;
+        numJettyAcceptors = Integer.parseInt(strJettyAcceptors);
+
+        //private static String strJettySelectors = -1;
+        numJettySelectors = Integer.parseInt(strJettySelectors);
+
+        try {
+            WorkerThreads.useVirtualThreads(virtualThreads);
+        } catch (UnsupportedOperationException e) {
+            logger.error("{}", e.getMessage());
+            System.exit(1);
+        }
+
         if (numThreadsAAAALookup <= 0) {
             doAAAAlookup = false;
         }
         if (numThreadsDNSCheck <= 0) {
             doQueryTLDserver = false;
-            doStoreResults = false;
         } else {
             setupDB();
         }
 
+        if (simulate) {
+            startSimulation();
+        }
+
         setupWorkerThreads();
 
-        transferRootZone();
+        rootZone = new RootZoneRefresh(axfrSource, numAxfrPort, numRootZoneMaxAge, engine, Main::rootZoneChanged);
+        restoreSnapshot();
 
+        // with a snapshot the API answers while the root zone is refreshed
         if (httpEnabled) {
             startJetty();
         }
+        if (numDnsPort > 0) {
+            startDnsServer();
+        }
+
+        long cycleStart = System.currentTimeMillis();
+        long generation = startCycle();
+        // the initial transfer queues the first cycle
+        int numDelegations = transferRootZone();
+        ScheduledExecutorService refresh = Executors.newSingleThreadScheduledExecutor(WorkerThreads.factory("RootZoneRefresh"));
+        refresh.scheduleWithFixedDelay(rootZone, numSoaCheck, numSoaCheck, TimeUnit.SECONDS);
+        if (s != null) {
+            ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(WorkerThreads.factory("LatencySweeper"));
+            sweeper.scheduleWithFixedDelay(() -> s.sweep(isPipelineIdle()), 60, 60, TimeUnit.SECONDS);
+        }
+        if (!snapshotFile.isEmpty()) {
+            Runtime.getRuntime().addShutdownHook(new Thread(Main::writeSnapshot, "SnapshotWriter"));
+        }
 
         while (true) {
-            for (int i = 0; i < records.size(); i++) {
-                Record r = (Record) records.get(i);
-                logger.debug("Delegation: {}", r.getName());
-                if (r.getType() == Type.NS) {
-                    if (!lastSeenName.equals(r.getName())) {
-                        lastSeenName = r.getName();
-                        queueDelegation.add(r);
-                        logger.debug("delegation {} queued", r.getName());
-                    }
+            awaitPipelineIdle();
+            if (s != null) {
+                s.completeCycle(generation);
+                s.sweep(true);
+            }
+            logCycle(cycleStart, numDelegations);
+            hostCache.purgeExpired();
+            writeSnapshot();
+
+            tldCacheComplete = true;
+
+            // sleep reRun time
+            try {
+                logger.info("sleeping {} until next run", numBackgroundCheck);
+                Thread.sleep(numBackgroundCheck * 1000);
+                System.gc();
+            } catch (Exception e) {
+                logger.warn("reRun sleep was interrupted: {}", e.getMessage());
+            }
+
+            long previousCycleStart = cycleStart;
+            cycleStart = System.currentTimeMillis();
+            generation = startCycle();
+            numDelegations = 0;
+            DelegationIndex index = delegationIndex;
+            for (Name delegation : index.getDelegations()) {
+                try {
+                    enqueueDelegation(index, delegation);
+                    numDelegations++;
+                } catch (InterruptedException e) {
+                    logger.warn("enqueue interrupted: {}", e.getMessage());
+                }
+            }
+            // cuts below the TLDs learned from referrals, unused ones expire
+            // and only those asked for since the last cycle are probed again
+            for (Name cut : zoneCuts.expire()) {
+                if (s != null) {
+                    s.purgeTld(cut);
+                }
+            }
+            if (lookupZone != null) {
+                lookupZone.retainProbes(zone -> index.getDelegations().contains(zone) || zoneCuts.isLearned(zone));
+            }
+            for (Name cut : zoneCuts.getLearnedUsedSince(previousCycleStart)) {
+                try {
+                    stageDelegation.put(cut);
+                    numDelegations++;
+                } catch (InterruptedException e) {
+                    logger.warn("enqueue interrupted: {}", e.getMessage());
                 }
             }
 
             // Shortcut to do only .com and .de
             /* 
-             * Record r = null;
              * try {
-             *   r = new NSRecord(new Name("com."), DClass.IN, 600, new Name("localhost."));
-             *   queueDelegation.add(r);
-             *   r = new NSRecord(new Name("de."), DClass.IN, 600, new Name("localhost."));
-             *   queueDelegation.add(r);
+             *   enqueueDelegation(index, new Name("com."));
+             *   enqueueDelegation(index, new Name("de."));
              * } catch (Exception e) {
              *   logger.warn("Exception while adding only debug tlds {}", e.toString());
              *  }
              */
             //END Shortcut
-            while (queueALookup.size() > 5 || queueDelegation.size() > 5 || queueDNSCheck.size() > 1) {
-                try {
-                    logger.info("delegation queue {}, A queue {}, AAAA queue {}, Check queue {}",
-                            queueDelegation.size(),
-                            queueALookup.size(),
-                            queueAAAALookup.size(),
-                            queueDNSCheck.size());
-                    Thread.sleep(5000);
-                } catch (Exception e) {
-                    logger.warn("sleep interrupted: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Queues the NS lookup of delegation. With -g the glue addresses of its
+     * nameservers go straight to the DNS check stage, so latency data is
+     * there before the resolver lookups are done.
+     */
+    private static void enqueueDelegation(DelegationIndex index, Name delegation) throws InterruptedException {
+        if (useGlue && doQueryTLDserver) {
+            for (Name ns : index.getNameservers(delegation)) {
+                for (InetAddress address : index.getGlue(ns)) {
+                    // blocks while the pipeline is saturated
+                    stageDNSCheck.put(new QueryIpForZone(address, delegation, true));
                 }
             }
+        }
+        // blocks while the pipeline is saturated
+        stageDelegation.put(delegation);
+        logger.debug("delegation {} queued", delegation);
+    }
 
-            tldCacheComplete = true;
+    private static void setDelegationIndex(DelegationIndex index) {
+        delegationIndex = index;
+        zoneCuts.setDelegations(index.getDelegations());
+    }
 
-            if (lastTransfer + numRootZoneMaxAge < System.currentTimeMillis()) {
-                logger.info("retransfering outdated root zone");
-                transferRootZone();
+    /**
+     * Called from DelegationLookup on a QueryEngine thread: a zone cut below
+     * a TLD was learned. Its servers are looked up and probed like those of
+     * a TLD, if the pipeline is full it waits for the next cycle.
+     */
+    private static void cutLearned(Name cut) {
+        if (!doQueryTLDserver || !stageDelegation.offer(cut)) {
+            logger.debug("zone cut {} queued for next cycle", cut);
+        }
+    }
+
+    /**
+     * Called by the root zone refresh with the result of a SOA/IXFR check.
+     * Changed delegations are looked up right away instead of in the next
+     * cycle, removed ones are dropped from the latency store.
+     */
+    private static void rootZoneChanged(DelegationIndex index, Set<Name> changed, Set<Name> removed) {
+        setDelegationIndex(index);
+        if (s != null) {
+            for (Name delegation : removed) {
+                s.purgeTld(delegation);
+            }
+            // servers not probed again after the lookups are evicted
+            for (Name delegation : changed) {
+                s.markChanged(delegation);
+            }
+        }
+        try {
+            for (Name delegation : changed) {
+                enqueueDelegation(index, delegation);
             }
+        } catch (InterruptedException e) {
+            logger.warn("enqueue of changed delegations interrupted: {}", e.getMessage());
+        }
+    }
 
-            // sleep reRun time
-            try {
-                logger.info("sleeping {} until next run", numBackgroundCheck);
-                Thread.sleep(numBackgroundCheck * 1000);
-                System.gc();
-            } catch (Exception e) {
-                logger.warn("reRun sleep was interrupted: {}", e.getMessage());
+    private static long startCycle() {
+        return s == null ? 0 : s.startCycle();
+    }
+
+    /**
+     * Same order as awaitPipelineIdle(): true if all work queued before the
+     * call is done.
+     */
+    private static boolean isPipelineIdle() {
+        Stage<?>[] stages = {stageDelegation, stageALookup, stageAAAALookup, stageDNSCheck};
+        for (Stage<?> stage : stages) {
+            if (stage.pending() > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Waits for the stages in pipeline order. A stage only completes an item
+     * after handing its results to the next stage, so once a stage is idle
+     * its successors have seen all the work they are going to get.
+     */
+    private static void awaitPipelineIdle() {
+        Stage<?>[] stages = {stageDelegation, stageALookup, stageAAAALookup, stageDNSCheck};
+        try {
+            for (Stage<?> stage : stages) {
+                while (!stage.awaitIdle(5, TimeUnit.SECONDS)) {
+                    logger.info("waiting for {}: delegation queue {}, A queue {}, AAAA queue {}, Check queue {}",
+                            stage.getName(),
+                            stageDelegation.pending(),
+                            stageALookup.pending(),
+                            stageAAAALookup.pending(),
+                            stageDNSCheck.pending());
+                }
+            }
+        } catch (InterruptedException e) {
+            logger.warn("wait for pipeline interrupted: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * One line per warm-up cycle to compare runs, e.g. with and without
+     * --virtual-threads.
+     */
+    private static void logCycle(long cycleStart, int numDelegations) {
+        long duration = Math.max(1, System.currentTimeMillis() - cycleStart);
+        cycleDuration.observe(TimeUnit.MILLISECONDS.toNanos(duration));
+        Runtime rt = Runtime.getRuntime();
+        logger.info("warm-up cycle: {} delegations in {}ms ({}/s), heap used {}MB, platform threads {}, virtual threads {}",
+                numDelegations,
+                duration,
+                numDelegations * 1000L / duration,
+                (rt.totalMemory() - rt.freeMemory()) >> 20,
+                ManagementFactory.getThreadMXBean().getThreadCount(),
+                WorkerThreads.isVirtual());
+        logger.info("host address cache: {} entries, {} resolver queries, {} hits, {} joined in-flight queries",
+                hostCache.size(),
+                hostCache.getQueries(),
+                hostCache.getHits(),
+                hostCache.getJoined());
+        if (simWorld != null && s != null) {
+            logger.info("simulated ranking accuracy: {}", simWorld.rankingAccuracy(s.getIndex()));
+        }
+    }
+
+    /**
+     * -sim: builds the simulated DNS world and points the AXFR source, the
+     * resolver and the TLD server port at it.
+     */
+    private static void startSimulation() {
+        try {
+            String[] latency = simLatency.split("-");
+            String[] faults = simFaults.split(",");
+            simWorld = SimWorld.builder()
+                    .tlds(Integer.parseInt(strSimTlds))
+                    .hosts(Integer.parseInt(strSimHosts))
+                    .seed(Long.parseLong(strSimSeed))
+                    .latency(Long.parseLong(latency[0]), Long.parseLong(latency[1]))
+                    .loss(Double.parseDouble(faults[0]) / 100)
+                    .late(Double.parseDouble(faults[1]) / 100)
+                    .unreachable(Double.parseDouble(faults[2]) / 100)
+                    .start();
+        } catch (Exception e) {
+            logger.error("simulated DNS world not started: {}", e.toString());
+            System.exit(1);
+        }
+        axfrSource = simWorld.getRoot().getAddress().getHostAddress();
+        resolverToWarm = simWorld.getResolver().getAddress().getHostAddress();
+        numAxfrPort = simWorld.getPort();
+        numResolverPort = simWorld.getPort();
+        numTldPort = simWorld.getPort();
+        logger.info("simulated DNS world: {}", simWorld);
+    }
+
+    /**
+     * Loads the snapshot file, if any. Its latency data goes into the store
+     * and its delegation index replaces the initial AXFR.
+     */
+    private static void restoreSnapshot() {
+        if (snapshotFile.isEmpty()) {
+            return;
+        }
+        Path path = Paths.get(snapshotFile);
+        if (!Files.exists(path)) {
+            logger.info("no snapshot {} yet, starting cold", snapshotFile);
+            return;
+        }
+        try {
+            Snapshot snapshot = Snapshot.load(path, s);
+            rootZone.restore(snapshot.getIndex(), snapshot.getLastFullTransfer());
+            setDelegationIndex(snapshot.getIndex());
+            // latency data of cuts below the TLDs means they were learned
+            for (Name cut : s == null ? Collections.<Name>emptySet() : s.getIndex().getTlds()) {
+                if (!delegationIndex.getDelegations().contains(cut)) {
+                    zoneCuts.learn(cut);
+                }
             }
+            tldCacheComplete = snapshot.getNumLatency() > 0;
+        } catch (Exception e) {
+            logger.warn("ignoring snapshot {}: {}", snapshotFile, e.toString());
+        }
+    }
+
+    /**
+     * Written after every cycle and on shutdown.
+     */
+    private static synchronized void writeSnapshot() {
+        if (snapshotFile.isEmpty() || delegationIndex == null) {
+            return;
+        }
+        try {
+            Snapshot.write(Paths.get(snapshotFile), delegationIndex, rootZone.getLastFullTransfer(), s);
+        } catch (Exception e) {
+            logger.warn("writing snapshot {} failed: {}", snapshotFile, e.toString());
         }
     }
 
-    private static void transferRootZone() {
+    /**
+     * Initial AXFR. Delegations are queued while the transfer is running,
+     * without blocking the transfer: what does not fit into the delegation
+     * stage is queued after the transfer finished. With -g everything is
+     * queued afterwards, the glue of a nameserver usually comes after the
+     * delegations using it.
+     *
+     * @return number of delegations queued
+     */
+    private static int transferRootZone() {
+        if (delegationIndex != null) {
+            // restored from a snapshot: one attempt, the scheduled refresh
+            // keeps trying while the AXFR source is down
+            DelegationIndex restored = delegationIndex;
+            try {
+                rootZone.refresh(null);
+                setDelegationIndex(rootZone.getIndex());
+            } catch (Exception e) {
+                logger.warn("root zone refresh from {} failed: {}, continuing with snapshot serial {}",
+                        axfrSource, e.toString(), delegationIndex.getSerial());
+            }
+            // rootZoneChanged() queued those the refresh changed
+            DelegationIndex index = delegationIndex;
+            Set<Name> changed = index == restored ? Collections.emptySet() : restored.changedIn(index);
+            try {
+                for (Name delegation : index.getDelegations()) {
+                    if (!changed.contains(delegation)) {
+                        enqueueDelegation(index, delegation);
+                    }
+                }
+            } catch (InterruptedException e) {
+                logger.warn("enqueue interrupted: {}", e.getMessage());
+            }
+            return index.size();
+        }
+        Set<Name> queued = new HashSet<>();
+        List<Name> deferred = new ArrayList<>();
+        Consumer<Name> sink = null;
+        if (!useGlue) {
+            sink = delegation -> {
+                if (queued.add(delegation) && !stageDelegation.offer(delegation)) {
+                    deferred.add(delegation);
+                }
+            };
+        }
         int waitTimeMillis = 10000;
         for (int i = 0; i < numAxfrRetries; i++) {
             try {
-                ZoneTransferIn xfr = ZoneTransferIn.newAXFR(new Name("."), axfrSource, null);
-                xfr.run();
-                records = xfr.getAXFR();
-                lastSeenName = new Name("abrakadabr.test");
-                lastTransfer = System.currentTimeMillis();
+                rootZone.refresh(sink);
+                setDelegationIndex(rootZone.getIndex());
                 break;
             } catch (Exception e) {
-                logger.error("AXFR failed: {}, exiting", e.getMessage());
-                e.printStackTrace();
+                logger.warn("AXFR from {} failed, attempt {} of {}", axfrSource, i + 1, numAxfrRetries, e);
+                if (i + 1 == numAxfrRetries) {
+                    break;
+                }
+                logger.info("retrying AXFR in {}s", waitTimeMillis / 1000);
                 try {
                     Thread.sleep(waitTimeMillis);
                 } catch (Exception ex) {
-                    logger.info("Sleep after failed transfer was interrupted: {}", e.toString());
+                    logger.info("Sleep after failed transfer was interrupted: {}", ex.toString());
                 }
                 waitTimeMillis = waitTimeMillis * 2;
             }
         }
-        if (lastTransfer == 0) {
+        if (delegationIndex == null) {
             logger.error("all AXFR attempts failed, giving up.");
             System.exit(1);
         }
+        try {
+            if (useGlue) {
+                for (Name delegation : delegationIndex.getDelegations()) {
+                    enqueueDelegation(delegationIndex, delegation);
+                }
+                return delegationIndex.size();
+            }
+            logger.info("{} delegations queued during transfer, {} after", queued.size() - deferred.size(), deferred.size());
+            for (Name delegation : deferred) {
+                stageDelegation.put(delegation);
+            }
+        } catch (InterruptedException e) {
+            logger.warn("enqueue interrupted: {}", e.getMessage());
+        }
+        return queued.size();
     }
 
     private static void setupWorkerThreads() {
-        for (int i = 0; i < numThreadsNSLookup; i++) {
-            Thread tNSLookup = new Thread(new DelegationNSSetLookup(queueDelegation, queueALookup, queueAAAALookup, resolverToWarm, numTimeout));
-            tNSLookup.setDaemon(true);
-            tNSLookup.setName("DelegationNSSetLookup-" + i);
-            tNSLookup.start();
+        stageDelegation = new Stage<>("delegation", numStageCapacity);
+        stageALookup = new Stage<>("A", numStageCapacity);
+        stageAAAALookup = new Stage<>("AAAA", numStageCapacity);
+        stageDNSCheck = new Stage<>("DNSCheck", numStageCapacity);
+
+        InetSocketAddress resolver = null;
+        try {
+            engine = new QueryEngine("QueryEngine", 4);
+            resolver = new InetSocketAddress(InetAddress.getByName(resolverToWarm), numResolverPort);
+            hostCache = new HostAddressCache(engine, resolver, Duration.ofSeconds(numTimeout));
+            hedgedQuery = new HedgedQuery(engine,
+                    Executors.newSingleThreadScheduledExecutor(WorkerThreads.factory("HedgeTimer")),
+                    Duration.ofMillis(numApiDeadline), numTldPort);
+            delegationLookup = new DelegationLookup(s, responseCache, hedgedQuery, hostCache, zoneCuts, Main::cutLearned);
+        } catch (Exception e) {
+            logger.error("failed to set up query engine for resolver {}: {}", resolverToWarm, e.toString());
+            System.exit(1);
         }
-        for (int i = 0; i < numThreadsALookup; i++) {
-            Thread tNSLookup = new Thread(new NSALookup(queueALookup, queueDNSCheck, resolverToWarm, numTimeout));
-            tNSLookup.setDaemon(true);
-            tNSLookup.setName("NSALookup-" + i);
-            tNSLookup.start();
+
+        if (numThreadsNSLookup > 0) {
+            startWorker("DelegationNSSetLookup", new DelegationNSSetLookup(stageDelegation, stageALookup, stageAAAALookup,
+                    engine, resolver, numTimeout, numThreadsNSLookup, newCompletionExecutor("DelegationNSSetLookup")));
+        }
+        if (numThreadsALookup > 0) {
+            startWorker("NSALookup", new NSALookup(stageALookup, stageDNSCheck,
+                    hostCache, numThreadsALookup, newCompletionExecutor("NSALookup")));
         }
-        for (int i = 0; i < numThreadsAAAALookup; i++) {
-            Thread tNSLookup = new Thread(new NSAAAALookup(queueAAAALookup, queueDNSCheck, resolverToWarm, numTimeout));
-            tNSLookup.setDaemon(true);
-            tNSLookup.setName("NSAAAALookup-" + i);
-            tNSLookup.start();
+        if (doAAAAlookup) {
+            startWorker("NSAAAALookup", new NSAAAALookup(stageAAAALookup, stageDNSCheck,
+                    hostCache, numThreadsAAAALookup, newCompletionExecutor("NSAAAALookup")));
         }
-        for (int i = 0; i < numThreadsDNSCheck; i++) {
-            Thread tNSLookup = new Thread(new LookupZone(queueDNSCheck, s));
-            tNSLookup.setDaemon(true);
-            tNSLookup.setName("DNSCheck-" + i);
-            tNSLookup.start();
+        if (doQueryTLDserver) {
+            lookupZone = new LookupZone(stageDNSCheck,
+                    engine, s, Duration.ofMillis(numProbeTimeout), numTldPort, numThreadsDNSCheck, newCompletionExecutor("DNSCheck"));
+            startWorker("DNSCheck", lookupZone);
         }
     }
 
+    private static void startWorker(String name, Runnable worker) {
+        WorkerThreads.start(name, worker);
+    }
+
+    /**
+     * Every stage gets its own completion thread, so a stage blocked on a
+     * full successor never holds up the completions of that successor.
+     */
+    private static ExecutorService newCompletionExecutor(String name) {
+        return Executors.newSingleThreadExecutor(WorkerThreads.factory(name + "-completion"));
+    }
+
     private static void setupDB() {
+        if (!useDb) {
+            s = new LatencyStore(null);
+            return;
+        }
         try {
             dbConn = DriverManager.getConnection(jdbcUrl, "sa", "sa");
             s = new LatencyStore(dbConn);
@@ -294,20 +795,69 @@ public class Main {
         }
     }
 
+    private static void startDnsServer() {
+        try {
+            dnsServer = new DnsServer(new InetSocketAddress(InetAddress.getByName(dnsAddress), numDnsPort), delegationLookup);
+        } catch (Exception e) {
+            logger.warn("DNS server on {}:{} not started: {}", dnsAddress, numDnsPort, e.toString());
+        }
+    }
+
+    /**
+     * The API goes to the http port. With -mp the admin servlets get their
+     * own connector and thread pool, so a flood of API requests can not
+     * starve /status.
+     */
     private static void startJetty() {
         try {
 
-            jetty = new Server(numHttpPort);
+            if (WorkerThreads.isVirtual()) {
+                jetty = new Server(new VirtualThreadPool());
+            } else {
+                QueuedThreadPool pool = new QueuedThreadPool(numJettyThreads, Math.min(8, numJettyThreads));
+                pool.setName("jetty");
+                jetty = new Server(pool);
+            }
+            ServerConnector connector = new ServerConnector(jetty, numJettyAcceptors, numJettySelectors);
+            connector.setName("api");
+            connector.setPort(numHttpPort);
+            jetty.addConnector(connector);
 
             ServletContextHandler context = new ServletContextHandler(ServletContextHandler.SESSIONS);
             context.setContextPath("/");
 
-            jetty.setHandler(context);
-
             context.addServlet(ServletRoot.class, "/");
-            context.addServlet(ServletStatus.class, "/status");
-            context.addServlet(ServletStatistics.class, "/statistics");
-            context.addServlet(ServletGetDelegatingNSSet.class, "/getDelegatingNSSet/*");
+            context.addServlet(ServletGetDelegatingNSSet.class, "/getDelegatingNSSet/*").setAsyncSupported(true);
+            context.addServlet(ServletBulkDelegatingNSSet.class, "/bulkDelegatingNSSet");
+
+            if (numAdminPort > 0) {
+                QueuedThreadPool adminPool = new QueuedThreadPool(ADMIN_THREADS, 2);
+                adminPool.setName("jetty-admin");
+                ServerConnector adminConnector = new ServerConnector(jetty, adminPool, null, null, 1, 1,
+                        new HttpConnectionFactory());
+                adminConnector.setName("admin");
+                adminConnector.setPort(numAdminPort);
+                jetty.addConnector(adminConnector);
+
+                ServletContextHandler admin = new ServletContextHandler();
+                admin.setContextPath("/");
+                admin.setVirtualHosts(new String[]{"@admin"});
+                admin.addServlet(ServletRoot.class, "/");
+                admin.addServlet(ServletStatus.class, "/status");
+                admin.addServlet(ServletStatistics.class, "/statistics");
+                admin.addServlet(ServletMetrics.class, "/metrics");
+                context.setVirtualHosts(new String[]{"@api"});
+
+                ContextHandlerCollection contexts = new ContextHandlerCollection();
+                contexts.addHandler(context);
+                contexts.addHandler(admin);
+                jetty.setHandler(contexts);
+            } else {
+                context.addServlet(ServletStatus.class, "/status");
+                context.addServlet(ServletStatistics.class, "/statistics");
+                context.addServlet(ServletMetrics.class, "/metrics");
+                jetty.setHandler(context);
+            }
 
             jetty.start();
 
@@ -333,19 +883,41 @@ public class Main {
     }
 
     public static int getQDSize() {
-        return queueDelegation.size();
+        return stageDelegation.size();
     }
 
     public static int getQASize() {
-        return queueALookup.size();
+        return stageALookup.size();
     }
 
     public static int getQAAAASize() {
-        return queueAAAALookup.size();
+        return stageAAAALookup.size();
     }
 
     public static int getQDNSSize() {
-        return queueDNSCheck.size();
+        return stageDNSCheck.size();
+    }
+
+    /**
+     * @return the pipeline stages in order: delegation, A, AAAA, DNSCheck
+     */
+    public static List<Stage<?>> getStages() {
+        return List.of(stageDelegation, stageALookup, stageAAAALookup, stageDNSCheck);
+    }
+
+    public static RootZoneRefresh getRootZone() {
+        return rootZone;
+    }
+
+    public static Histogram getCycleDuration() {
+        return cycleDuration;
+    }
+
+    /**
+     * /getDelegatingNSSet latency by outcome.
+     */
+    public static HistogramFamily getApiLatency() {
+        return apiLatency;
     }
 
     public static boolean doAAAAlookup() {
@@ -356,10 +928,57 @@ public class Main {
         return doQueryTLDserver;
     }
 
+    public static QueryEngine getQueryEngine() {
+        return engine;
+    }
+
+    public static HostAddressCache getHostCache() {
+        return hostCache;
+    }
+
+    public static HedgedQuery getHedgedQuery() {
+        return hedgedQuery;
+    }
+
+    public static DelegationLookup getDelegationLookup() {
+        return delegationLookup;
+    }
+
+    /**
+     * @return null unless -dp is given
+     */
+    public static DnsServer getDnsServer() {
+        return dnsServer;
+    }
+
+    public static ZoneCutTrie getZoneCuts() {
+        return zoneCuts;
+    }
+
+    public static int getBulkWindow() {
+        return numBulkWindow;
+    }
+
+    public static ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    public static LatencyStore getLatencyStore() {
+        return s;
+    }
+
     public static Connection getDbConn() {
         return dbConn;
     }
 
+    public static boolean useGlue() {
+        return useGlue;
+    }
+
+    public static DelegationIndex getDelegationIndex() {
+        return delegationIndex;
+    }
+
     public static boolean tldCacheComplete() {
         return tldCacheComplete;
     }
@@ -1,7 +1,7 @@
 /*
  * The MIT License
  *
- * Copyright 2019 mieslingert.
+ * Copyright 2020 mieslingert.
  *
  * Permission is hereby granted, free of charge, to any person obtaining a copy
  * of this software and associated documentation files (the "Software"), to deal
@@ -24,17 +24,21 @@
 package de.mieslinger.nsrrsetd.background;
 
 import de.mieslinger.nsrrsetd.Main;
+import de.mieslinger.nsrrsetd.resolver.QueryEngine;
+import de.mieslinger.nsrrsetd.store.DelegationIndex;
 import de.mieslinger.nsrrsetd.transfer.QueryNsForIP;
+import java.net.InetSocketAddress;
 import java.time.Duration;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.xbill.DNS.Cache;
-import org.xbill.DNS.DClass;
-import org.xbill.DNS.Lookup;
+import org.xbill.DNS.Message;
 import org.xbill.DNS.NSRecord;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Rcode;
 import org.xbill.DNS.Record;
-import org.xbill.DNS.SimpleResolver;
+import org.xbill.DNS.Section;
 import org.xbill.DNS.Type;
 
 /**
@@ -42,81 +46,75 @@ import org.xbill.DNS.Type;
  *
  * @author mieslingert
  */
-public class DelegationNSSetLookup implements Runnable {
+public class DelegationNSSetLookup extends StageWorker<Name, Message> {
 
-    private ConcurrentLinkedQueue<Record> queueDelegation;
-    private ConcurrentLinkedQueue<QueryNsForIP> queueAAAALookup;
-    private ConcurrentLinkedQueue<QueryNsForIP> queueALookup;
-    private String resolverToWarm;
+    private Stage<QueryNsForIP> stageAAAALookup;
+    private Stage<QueryNsForIP> stageALookup;
+    private QueryEngine engine;
+    private InetSocketAddress resolverToWarm;
     private final Logger logger = LoggerFactory.getLogger(DelegationNSSetLookup.class);
-    private boolean keepOnRunning = true;
-    private Cache c;
-    private int timeout;
+    private Duration timeout;
     private boolean doAAAAlookup = true;
+    private boolean useGlue = false;
 
-    private DelegationNSSetLookup() {
-    }
-
-    public DelegationNSSetLookup(ConcurrentLinkedQueue<Record> queueDelegation,
-            ConcurrentLinkedQueue<QueryNsForIP> queueALookup,
-            ConcurrentLinkedQueue<QueryNsForIP> queueAAAALookup,
-            String resolverToWarm,
-            int timeout) {
-        this.queueDelegation = queueDelegation;
-        this.queueALookup = queueALookup;
-        this.queueAAAALookup = queueAAAALookup;
+    public DelegationNSSetLookup(Stage<Name> stageDelegation,
+            Stage<QueryNsForIP> stageALookup,
+            Stage<QueryNsForIP> stageAAAALookup,
+            QueryEngine engine,
+            InetSocketAddress resolverToWarm,
+            int timeout,
+            int maxInFlight,
+            Executor completions) {
+        super(stageDelegation, maxInFlight, completions);
+        this.stageALookup = stageALookup;
+        this.stageAAAALookup = stageAAAALookup;
+        this.engine = engine;
         this.resolverToWarm = resolverToWarm;
-        this.c = new Cache();
-        c.setMaxEntries(0);
-        this.timeout = timeout;
+        this.timeout = Duration.ofSeconds(timeout);
         this.doAAAAlookup = Main.doAAAAlookup();
+        this.useGlue = Main.useGlue();
     }
 
-    public void run() {
-        while (keepOnRunning) {
-            try {
-                Record delegation = queueDelegation.poll();
-                if (delegation != null) {
-                    doLookup(delegation);
-                } else {
-                    Thread.sleep(5000);
-                }
-            } catch (Exception e) {
-                logger.warn("Delegation NSSet Lookup Exception: ", e);
-            }
-        }
+    @Override
+    protected CompletableFuture<Message> start(Name delegation) {
+        logger.debug("querying NS of {}", delegation);
+        return engine.send(QueryEngine.newQuery(delegation, Type.NS, true), resolverToWarm, timeout);
     }
 
-    private void doLookup(Record delegation) throws Exception {
-        Lookup l = new Lookup(delegation.getName(), Type.NS, DClass.IN);
-        l.setCache(c);
-        SimpleResolver r = new SimpleResolver(resolverToWarm);
-        r.setTimeout(Duration.ofSeconds(timeout));
-        l.setResolver(r);
-        long begin = System.currentTimeMillis();
-        l.run();
-        long end = System.currentTimeMillis();
-        long latency = end - begin;
-        logger.debug("querying NS of {}", delegation.getName());
-        if (l.getResult() == Lookup.SUCCESSFUL) {
-            // dig A and AAAA for every NS record returned
-            logger.debug("query for {} took {}ms", delegation.getName().toString(true), latency);
-            Record[] answers = l.getAnswers();
-            for (int j = 0; j < answers.length; j++) {
-                if (answers[j].getType() == Type.NS) {
-                    NSRecord ns = (NSRecord) answers[j];
-                    QueryNsForIP q = new QueryNsForIP(ns.getTarget(), delegation.getName());
-                    queueALookup.add(q);
-                    if (doAAAAlookup) {
-                        queueAAAALookup.add(q);
-                    }
-                    // TODO: check length and sleep?                 
+    @Override
+    protected Stage.Outcome outcome(Message response) {
+        return response.getRcode() == Rcode.NOERROR ? Stage.Outcome.COMPLETED : Stage.Outcome.FAILED;
+    }
+
+    @Override
+    protected void completed(Name delegation, Message response) throws InterruptedException {
+        int rcode = response.getRcode();
+        if (rcode != Rcode.NOERROR) {
+            logger.warn("query NS for tld delegation {} failed! (Error: {})", delegation, Rcode.string(rcode));
+            return;
+        }
+        // dig A and AAAA for every NS record returned
+        DelegationIndex index = Main.getDelegationIndex();
+        for (Record answer : response.getSection(Section.ANSWER)) {
+            if (answer.getType() == Type.NS && answer.getName().equals(delegation)) {
+                NSRecord ns = (NSRecord) answer;
+                if (useGlue && index.hasGlue(ns.getTarget())
+                        && index.getNameservers(delegation).contains(ns.getTarget())) {
+                    // already queued for DNS check by Main
+                    continue;
+                }
+                QueryNsForIP q = new QueryNsForIP(ns.getTarget(), delegation);
+                stageALookup.put(q);
+                if (doAAAAlookup) {
+                    stageAAAALookup.put(q);
                 }
             }
-        } else {
-            // Lookup unsuccessful
-            logger.warn("query NS for tld delegation {} failed! (Error: {})", delegation, l.getErrorString());
         }
     }
 
+    @Override
+    protected void failed(Name delegation, Throwable t) {
+        logger.warn("query NS for tld delegation {} failed! (Error: {})", delegation, t.toString());
+    }
+
 }
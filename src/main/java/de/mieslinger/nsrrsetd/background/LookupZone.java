@@ -23,77 +23,96 @@
  */
 package de.mieslinger.nsrrsetd.background;
 
+import de.mieslinger.nsrrsetd.resolver.ProbeResult;
+import de.mieslinger.nsrrsetd.resolver.QueryEngine;
 import de.mieslinger.nsrrsetd.store.LatencyStore;
 import de.mieslinger.nsrrsetd.transfer.QueryIpForZone;
+import java.net.InetSocketAddress;
 import java.time.Duration;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.Predicate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.xbill.DNS.Cache;
-import org.xbill.DNS.DClass;
-import org.xbill.DNS.Lookup;
-import org.xbill.DNS.SimpleResolver;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Rcode;
 import org.xbill.DNS.Type;
 
 /**
+ * Probes a TLD server with a non-recursive NS query for its zone.
+ *
+ * The query of every zone is encoded once and reused for all of its
+ * servers and cycles, until retainProbes() drops the zones that are no
+ * longer probed. Failed probes are logged at debug level only, their
+ * number is in the DNSCheck stage outcomes of /metrics.
  *
  * @author mieslingert
  */
-public class LookupZone implements Runnable {
+public class LookupZone extends StageWorker<QueryIpForZone, ProbeResult> {
 
-    private boolean keepOnRunning = true;
     private final Logger logger = LoggerFactory.getLogger(LookupZone.class);
-    private ConcurrentLinkedQueue<QueryIpForZone> queueDNSCheck;
+    private final ConcurrentHashMap<Name, byte[]> probes = new ConcurrentHashMap<>();
+    private QueryEngine engine;
     private LatencyStore s;
-    private Cache c;
+    private Duration timeout;
+    private int port;
 
-    private LookupZone() {
-        this.queueDNSCheck = queueDNSCheck;
+    public LookupZone(Stage<QueryIpForZone> stageDNSCheck,
+            QueryEngine engine,
+            LatencyStore s,
+            Duration timeout,
+            int port,
+            int maxInFlight,
+            Executor completions) {
+        super(stageDNSCheck, maxInFlight, completions);
+        this.engine = engine;
+        this.s = s;
+        this.timeout = timeout;
+        this.port = port;
     }
 
-    public LookupZone(ConcurrentLinkedQueue<QueryIpForZone> queueDNSCheck,
-            LatencyStore s) {
-        this.queueDNSCheck = queueDNSCheck;
-        this.s = s;
-        this.c = new Cache();
-        c.setMaxEntries(0);
+    @Override
+    protected CompletableFuture<ProbeResult> start(QueryIpForZone n) {
+        logger.debug("Query NS Records for zone {} from server {}", n.getZone(), n.getIp());
+        byte[] wire = probes.computeIfAbsent(n.getZone(), zone -> QueryEngine.encodeProbe(zone, Type.NS));
+        return engine.probe(wire, new InetSocketAddress(n.getIp(), port), timeout);
     }
 
     @Override
-    public void run() {
-        while (keepOnRunning) {
-            try {
-                QueryIpForZone n = queueDNSCheck.poll();
-                if (n != null) {
-                    doLookup(n);
-                } else {
-                    Thread.sleep(5000);
-                }
-            } catch (Exception e) {
-                logger.warn("Exception while querying tld nameserver: ", e);
-            }
+    protected Stage.Outcome outcome(ProbeResult result) {
+        switch (result.getStatus()) {
+            case TIMEOUT:
+                return Stage.Outcome.TIMED_OUT;
+            case ERROR:
+                return Stage.Outcome.FAILED;
+            default:
+                return result.isNoError() ? Stage.Outcome.COMPLETED : Stage.Outcome.FAILED;
         }
     }
 
-    private void doLookup(QueryIpForZone n) throws Exception {
-        logger.debug("Query NS Records for zone {} from server {}", n.getZone(), n.getIp());
-        Lookup la = new Lookup(n.getZone(), Type.NS, DClass.IN);
-        la.setCache(c);
-        SimpleResolver r = new SimpleResolver(n.getIp());
-        r.setTimeout(Duration.ofSeconds(20));
-        la.setResolver(r);
-        long begin = System.currentTimeMillis();
-        la.run();
-        long end = System.currentTimeMillis();
-        long latency = end - begin;
-        switch (la.getResult()) {
-            case Lookup.SUCCESSFUL:
-                logger.debug("Query for NS Records of zone {} from server {} took {}ms", n.getZone(), n.getIp(), latency);
-                s.storeLatency(n.getZone(), n.getIp(), latency, end);
-                break;
-            default:
-                logger.info("Query for NS Records of zone {} from server {} failed (Error: {})", n.getZone(), n.getIp(), la.getErrorString());
-                break;
+    @Override
+    protected void completed(QueryIpForZone n, ProbeResult result) {
+        if (result.isNoError()) {
+            logger.debug("Query for NS Records of zone {} from server {} took {}us", n.getZone(), n.getIp(), result.getRtt() / 1000);
+            s.storeLatency(n.getZone(), n.getIp(), result.getRtt(), System.currentTimeMillis());
+            return;
         }
+        // timeouts and error answers count against the server alike
+        logger.debug("Query for NS Records of zone {} from server {} failed (Error: {})", n.getZone(), n.getIp(),
+                result.getStatus() == ProbeResult.Status.ANSWERED ? Rcode.string(result.getRcode()) : result.toString());
+        s.storeLoss(n.getZone(), n.getIp(), System.currentTimeMillis());
+    }
+
+    /**
+     * Forgets the encoded queries of the zones probed is false for.
+     */
+    public void retainProbes(Predicate<Name> probed) {
+        probes.keySet().removeIf(zone -> !probed.test(zone));
+    }
+
+    @Override
+    protected void failed(QueryIpForZone n, Throwable t) {
+        logger.warn("Query for NS Records of zone {} from server {} failed (Error: {})", n.getZone(), n.getIp(), t.toString());
     }
 }
@@ -1,7 +1,7 @@
 /*
  * The MIT License
  *
- * Copyright 2019 mieslingert.
+ * Copyright 2020 mieslingert.
  *
  * Permission is hereby granted, free of charge, to any person obtaining a copy
  * of this software and associated documentation files (the "Software"), to deal
@@ -24,105 +24,64 @@
 package de.mieslinger.nsrrsetd.background;
 
 import de.mieslinger.nsrrsetd.Main;
+import de.mieslinger.nsrrsetd.resolver.HostAddressCache;
 import de.mieslinger.nsrrsetd.transfer.QueryIpForZone;
 import de.mieslinger.nsrrsetd.transfer.QueryNsForIP;
-import java.time.Duration;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.xbill.DNS.AAAARecord;
-import org.xbill.DNS.Cache;
-import org.xbill.DNS.DClass;
-import org.xbill.DNS.Lookup;
-import org.xbill.DNS.SimpleResolver;
 import org.xbill.DNS.Type;
 
 /**
+ * Resolves AAAA of a TLD nameserver through the shared HostAddressCache, so
+ * a host serving many TLDs is only queried once per TTL.
  *
  * @author mieslingert
  */
-public class NSAAAALookup implements Runnable {
-    
-    private ConcurrentLinkedQueue<QueryNsForIP> queueAAAALookup;
-    private ConcurrentLinkedQueue<QueryIpForZone> queueDNSCheck;
-    private String resolverToWarm;
-    private boolean keepOnRunning = true;
+public class NSAAAALookup extends StageWorker<QueryNsForIP, List<InetAddress>> {
+
+    private Stage<QueryIpForZone> stageDNSCheck;
+    private HostAddressCache hostCache;
     private final Logger logger = LoggerFactory.getLogger(NSAAAALookup.class);
-    private Cache c;
-    private int timeout;
     private boolean doQueryTLDserver = true;
-    
-    private NSAAAALookup() {
-        
-    }
-    
-    public NSAAAALookup(ConcurrentLinkedQueue<QueryNsForIP> queueAAAALookup,
-            ConcurrentLinkedQueue<QueryIpForZone> queueDNSCheck,
-            String resolverToWarm,
-            int timeout) {
-        
-        this.queueAAAALookup = queueAAAALookup;
-        this.queueDNSCheck = queueDNSCheck;
-        this.resolverToWarm = resolverToWarm;
-        this.c = new Cache();
-        c.setMaxEntries(0);
-        this.timeout = timeout;
+
+    public NSAAAALookup(Stage<QueryNsForIP> stageAAAALookup,
+            Stage<QueryIpForZone> stageDNSCheck,
+            HostAddressCache hostCache,
+            int maxInFlight,
+            Executor completions) {
+        super(stageAAAALookup, maxInFlight, completions);
+        this.stageDNSCheck = stageDNSCheck;
+        this.hostCache = hostCache;
         this.doQueryTLDserver = Main.doQueryTLDserver();
-        
     }
-    
+
     @Override
-    public void run() {
-        while (keepOnRunning) {
-            try {
-                QueryNsForIP n = queueAAAALookup.poll();
-                if (n != null) {
-                    doLookup(n);
-                } else {
-                    Thread.sleep(5000);
-                }
-            } catch (Exception e) {
-                logger.warn("AAAA Lookup Exception: ", e);
+    protected CompletableFuture<List<InetAddress>> start(QueryNsForIP n) {
+        logger.debug("Query AAAA for {} of tld {}", n.getServerName(), n.getTld());
+        return hostCache.resolve(n.getServerName(), Type.AAAA);
+    }
+
+    @Override
+    protected void completed(QueryNsForIP n, List<InetAddress> addresses) throws InterruptedException {
+        if (addresses.isEmpty()) {
+            logger.debug("no AAAA record for {}", n);
+            return;
+        }
+        if (doQueryTLDserver) {
+            for (InetAddress address : addresses) {
+                QueryIpForZone q = new QueryIpForZone(address, n.getTld(), true);
+                stageDNSCheck.put(q);
+                logger.debug("queued direct query to {} for {}", address, n.getTld().toString(true));
             }
         }
-        
     }
-    
-    private void doLookup(QueryNsForIP n) throws Exception {
-        logger.debug("Query AAAA for {} of tld {}", n.getServerName(), n.getTld());
-        Lookup la = new Lookup(n.getServerName(), Type.AAAA, DClass.IN);
-        la.setCache(c);
-        SimpleResolver r = new SimpleResolver(resolverToWarm);
-        r.setTimeout(Duration.ofSeconds(timeout));
-        la.setResolver(r);
-        long begin = System.currentTimeMillis();
-        la.run();
-        long end = System.currentTimeMillis();
-        long latency = end - begin;
-        switch (la.getResult()) {
-            case Lookup.SUCCESSFUL:
-                logger.debug("Query for AAAA of {} took {}ms", n.getServerName().toString(true), latency);
-                if (doQueryTLDserver) {
-                    for (int i = 0; i < la.getAnswers().length; i++) {
-                        AAAARecord a = (AAAARecord) la.getAnswers()[0];
-                        QueryIpForZone q = new QueryIpForZone(a.getAddress(), n.getTld(), true);
-                        queueDNSCheck.add(q);
-                        logger.debug("queued direct query to {} for {}", a.getAddress().toString(), n.getTld().toString(true));
-                    }
-                }
-                break;
-            case Lookup.HOST_NOT_FOUND:
-                // NXDOMAIN
-                logger.debug("HOST_NOT_FOUND AAAA record for {}", n);
-                break;
-            case Lookup.TYPE_NOT_FOUND:
-                // empty NOERROR reply
-                logger.debug("TYPE_NOT_FOUND AAAA record for {}", n);
-                break;
-            default:
-                logger.warn("query AAAA for NS {} tld {} failed! (Error: {})", n.getServerName().toString(true), n.getTld().toString(true), la.getErrorString());
-                break;
-        }
+
+    @Override
+    protected void failed(QueryNsForIP n, Throwable t) {
+        logger.warn("query AAAA for NS {} tld {} failed! (Error: {})", n.getServerName().toString(true), n.getTld().toString(true), t.toString());
     }
-    
 }
@@ -0,0 +1,328 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 mieslingert.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.mieslinger.nsrrsetd.background;
+
+import de.mieslinger.nsrrsetd.metrics.Histogram;
+import de.mieslinger.nsrrsetd.resolver.QueryEngine;
+import de.mieslinger.nsrrsetd.store.DelegationIndex;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.SOARecord;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+import org.xbill.DNS.ZoneTransferException;
+import org.xbill.DNS.ZoneTransferIn;
+
+/**
+ * Keeps the DelegationIndex of the root zone up to date.
+ *
+ * Every run asks the AXFR source for the SOA serial first and does nothing
+ * while it is unchanged. A new serial is fetched with IXFR (the source may
+ * answer with a full AXFR instead). After maxAge a full AXFR is done
+ * regardless of the serial.
+ *
+ * Records are indexed as they arrive, the raw zone is never held in
+ * memory. The initial transfer can stream every delegation to a sink as soon
+ * as its NS set is complete, so the pipeline starts while the transfer is
+ * still running.
+ *
+ * The listener gets the delegations that were added or changed and those
+ * that were removed, it is not called for the initial transfer.
+ *
+ * @author mieslingert
+ */
+public class RootZoneRefresh implements Runnable {
+
+    public interface Listener {
+
+        void zoneChanged(DelegationIndex index, Set<Name> changed, Set<Name> removed);
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(RootZoneRefresh.class);
+    private final String axfrSource;
+    private final int port;
+    private final long maxAgeMillis;
+    private final QueryEngine engine;
+    private final Listener listener;
+    private volatile DelegationIndex index;
+    private volatile long lastFullTransfer = 0;
+    private final Histogram axfrDuration = Histogram.duration();
+    private final Histogram ixfrDuration = Histogram.duration();
+    private final LongAdder failures = new LongAdder();
+    private volatile long axfrRecords = 0;
+
+    /**
+     * @param port of the AXFR source, 53 unless it is simulated
+     */
+    public RootZoneRefresh(String axfrSource, int port, long maxAgeMillis, QueryEngine engine, Listener listener) {
+        this.axfrSource = axfrSource;
+        this.port = port;
+        this.maxAgeMillis = maxAgeMillis;
+        this.engine = engine;
+        this.listener = listener;
+    }
+
+    @Override
+    public void run() {
+        try {
+            refresh(null);
+        } catch (Exception e) {
+            failures.increment();
+            logger.warn("root zone refresh from {} failed: {}", axfrSource, e.toString());
+        }
+    }
+
+    /**
+     * @param sink gets every delegation of a full transfer as soon as its NS
+     * set is complete, may be null. Runs on the transfer thread and must not
+     * block for long.
+     */
+    public void refresh(Consumer<Name> sink) throws Exception {
+        DelegationIndex current = index;
+        DelegationIndex updated;
+        if (current == null || System.currentTimeMillis() - lastFullTransfer > maxAgeMillis) {
+            if (current != null) {
+                logger.info("retransfering outdated root zone");
+            }
+            updated = transferAXFR(sink);
+        } else {
+            long serial = querySerial();
+            if (serial == current.getSerial()) {
+                logger.debug("root zone serial {} unchanged", serial);
+                return;
+            }
+            logger.info("root zone serial changed from {} to {}", current.getSerial(), serial);
+            updated = transferIXFR(current);
+            if (updated == null) {
+                return;
+            }
+        }
+        install(current, updated);
+    }
+
+    public DelegationIndex getIndex() {
+        return index;
+    }
+
+    public long getLastFullTransfer() {
+        return lastFullTransfer;
+    }
+
+    public Histogram getAxfrDuration() {
+        return axfrDuration;
+    }
+
+    /**
+     * IXFRs that came back with deltas, not those answered with the full
+     * zone.
+     */
+    public Histogram getIxfrDuration() {
+        return ixfrDuration;
+    }
+
+    /**
+     * @return records of the last full transfer
+     */
+    public long getAxfrRecords() {
+        return axfrRecords;
+    }
+
+    /**
+     * Failed SOA checks and transfers of the scheduled refresh.
+     */
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    /**
+     * Starts from an index loaded from a snapshot instead of an AXFR. The
+     * next refresh checks its serial and fetches the difference.
+     */
+    public void restore(DelegationIndex restored, long transferredAt) {
+        index = restored;
+        lastFullTransfer = transferredAt;
+    }
+
+    private void install(DelegationIndex current, DelegationIndex updated) {
+        index = updated;
+        logger.info("root zone serial {}: {} delegations, glue for {} hosts",
+                updated.getSerial(), updated.size(), updated.glueSize());
+        if (current == null) {
+            return;
+        }
+        Set<Name> changed = current.changedIn(updated);
+        Set<Name> removed = current.removedIn(updated);
+        logger.info("root zone diff: {} delegations added or changed, {} removed", changed.size(), removed.size());
+        if (!changed.isEmpty() || !removed.isEmpty()) {
+            listener.zoneChanged(updated, Collections.unmodifiableSet(changed), Collections.unmodifiableSet(removed));
+        }
+    }
+
+    private DelegationIndex transferAXFR(Consumer<Name> sink) throws IOException, ZoneTransferException {
+        ZoneTransferIn xfr = ZoneTransferIn.newAXFR(Name.root, axfrSource, port, null);
+        IndexingHandler handler = new IndexingHandler(null, sink);
+        long started = System.nanoTime();
+        xfr.run(handler);
+        axfrDuration.observeNanosSince(started);
+        axfrRecords = handler.numRecords;
+        lastFullTransfer = System.currentTimeMillis();
+        return handler.finish();
+    }
+
+    /**
+     * @return null if the source says we are current
+     */
+    private DelegationIndex transferIXFR(DelegationIndex current) throws IOException, ZoneTransferException {
+        ZoneTransferIn xfr = ZoneTransferIn.newIXFR(Name.root, current.getSerial(), true, axfrSource, port, null);
+        IndexingHandler handler = new IndexingHandler(current, null);
+        long started = System.nanoTime();
+        xfr.run(handler);
+        if (handler.builder == null) {
+            // only the SOA came back, we are current
+            return null;
+        }
+        if (handler.axfr) {
+            logger.info("IXFR answered with full zone");
+            axfrDuration.observeNanosSince(started);
+            axfrRecords = handler.numRecords;
+            lastFullTransfer = System.currentTimeMillis();
+        } else {
+            ixfrDuration.observeNanosSince(started);
+            logger.info("applied {} IXFR deltas", handler.numDeltas);
+        }
+        return handler.finish();
+    }
+
+    /**
+     * Feeds AXFR records or IXFR deltas straight into a
+     * DelegationIndex.Builder.
+     */
+    private static class IndexingHandler implements ZoneTransferIn.ZoneTransferHandler {
+
+        private final DelegationIndex base;
+        private final Consumer<Name> sink;
+        private final Set<Name> emitted = new HashSet<>();
+        private DelegationIndex.Builder builder;
+        private boolean axfr = false;
+        private boolean deleting = false;
+        private int numDeltas = 0;
+        private long numRecords = 0;
+        private Name currentDelegation;
+
+        private IndexingHandler(DelegationIndex base, Consumer<Name> sink) {
+            this.base = base;
+            this.sink = sink;
+        }
+
+        @Override
+        public void startAXFR() {
+            builder = new DelegationIndex.Builder();
+            axfr = true;
+        }
+
+        @Override
+        public void startIXFR() {
+            builder = new DelegationIndex.Builder(base);
+        }
+
+        @Override
+        public void startIXFRDeletes(Record soa) {
+            deleting = true;
+            numDeltas++;
+        }
+
+        @Override
+        public void startIXFRAdds(Record soa) {
+            deleting = false;
+            builder.add(soa);
+        }
+
+        @Override
+        public void handleRecord(Record r) {
+            numRecords++;
+            if (deleting) {
+                builder.remove(r);
+                return;
+            }
+            builder.add(r);
+            if (axfr && sink != null) {
+                track(r);
+            }
+        }
+
+        /**
+         * The NS set of a delegation is complete once a record with another
+         * owner shows up.
+         */
+        private void track(Record r) {
+            if (currentDelegation != null && !currentDelegation.equals(r.getName())) {
+                emit();
+            }
+            if (r.getType() == Type.NS && !r.getName().equals(Name.root)) {
+                currentDelegation = r.getName();
+            }
+        }
+
+        private void emit() {
+            if (emitted.add(currentDelegation)) {
+                sink.accept(currentDelegation);
+            }
+            currentDelegation = null;
+        }
+
+        private DelegationIndex finish() {
+            if (currentDelegation != null && sink != null) {
+                emit();
+            }
+            return builder.build();
+        }
+    }
+
+    private long querySerial() throws Exception {
+        InetSocketAddress source = new InetSocketAddress(InetAddress.getByName(axfrSource), port);
+        Message response = engine.send(QueryEngine.newQuery(Name.root, Type.SOA, false), source, Duration.ofSeconds(10)).get();
+        if (response.getRcode() != Rcode.NOERROR) {
+            throw new IOException("SOA query failed: " + Rcode.string(response.getRcode()));
+        }
+        for (Record r : response.getSection(Section.ANSWER)) {
+            if (r.getType() == Type.SOA) {
+                return ((SOARecord) r).getSerial();
+            }
+        }
+        throw new IOException("no SOA in answer");
+    }
+}
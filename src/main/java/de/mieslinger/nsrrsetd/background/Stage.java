@@ -0,0 +1,163 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 mieslingert.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.mieslinger.nsrrsetd.background;
+
+import de.mieslinger.nsrrsetd.metrics.Histogram;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One step of the background pipeline: a bounded hand-off queue plus a count
+ * of items that were put but not yet completed by a worker.
+ *
+ * put() blocks when the queue is full, so a slow stage pushes back on its
+ * producers. Workers take() an item and must call complete() once they are
+ * done with it, including everything they put into the next stage. A stage
+ * is idle when every item put has been completed.
+ *
+ * The counters and the latency histogram are filled by the StageWorker
+ * and exported on /metrics.
+ *
+ * @author mieslingert
+ */
+public class Stage<T> {
+
+    public enum Outcome {
+        COMPLETED, FAILED, TIMED_OUT
+    }
+
+    private final String name;
+    private final BlockingQueue<T> queue;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition idle = lock.newCondition();
+    private final LongAdder enqueued = new LongAdder();
+    private final LongAdder[] finished = new LongAdder[Outcome.values().length];
+    private final Histogram latency = Histogram.latency();
+
+    public Stage(String name, int capacity) {
+        this.name = name;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        for (int i = 0; i < finished.length; i++) {
+            finished[i] = new LongAdder();
+        }
+    }
+
+    public void put(T item) throws InterruptedException {
+        pending.incrementAndGet();
+        try {
+            queue.put(item);
+            enqueued.increment();
+        } catch (InterruptedException e) {
+            complete();
+            throw e;
+        }
+    }
+
+    /**
+     * Like put() but returns false instead of waiting when the queue is full.
+     */
+    public boolean offer(T item) {
+        pending.incrementAndGet();
+        if (queue.offer(item)) {
+            enqueued.increment();
+            return true;
+        }
+        complete();
+        return false;
+    }
+
+    public T take() throws InterruptedException {
+        return queue.take();
+    }
+
+    public void complete() {
+        if (pending.decrementAndGet() == 0) {
+            lock.lock();
+            try {
+                idle.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Waits until every item put into this stage has been completed.
+     *
+     * @return false if the stage was still busy when the timeout elapsed
+     */
+    public boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (pending.get() > 0) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = idle.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void finished(Outcome outcome) {
+        finished[outcome.ordinal()].increment();
+    }
+
+    /**
+     * Time from starting the query of an item until its answer, timeout or
+     * error.
+     */
+    public Histogram getLatency() {
+        return latency;
+    }
+
+    public long getEnqueued() {
+        return enqueued.sum();
+    }
+
+    public long getFinished(Outcome outcome) {
+        return finished[outcome.ordinal()].sum();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int size() {
+        return queue.size();
+    }
+
+    public int pending() {
+        return pending.get();
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 mieslingert.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.mieslinger.nsrrsetd.background;
+
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Takes items from a stage and starts an asynchronous query for each of
+ * them, keeping at most maxInFlight queries outstanding.
+ *
+ * Results are handled on the completions executor, which may block while
+ * handing work to the next stage. The stage item is completed only after
+ * completed() or failed() returned.
+ *
+ * Every item is counted on the stage as completed, failed or timed out, and
+ * the time until its query finished goes into the stage latency histogram.
+ *
+ * @author mieslingert
+ */
+public abstract class StageWorker<T, R> implements Runnable {
+
+    private final Stage<T> stage;
+    private final Semaphore inFlight;
+    private final Executor completions;
+    private final Logger logger = LoggerFactory.getLogger(StageWorker.class);
+    private boolean keepOnRunning = true;
+
+    protected StageWorker(Stage<T> stage, int maxInFlight, Executor completions) {
+        this.stage = stage;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.completions = completions;
+    }
+
+    @Override
+    public void run() {
+        while (keepOnRunning) {
+            T item;
+            try {
+                item = stage.take();
+                inFlight.acquire();
+            } catch (InterruptedException e) {
+                return;
+            }
+            CompletableFuture<R> f;
+            long started = System.nanoTime();
+            try {
+                f = start(item);
+            } catch (Exception e) {
+                logger.warn("{} stage: could not start {}: ", stage.getName(), item, e);
+                stage.finished(Stage.Outcome.FAILED);
+                inFlight.release();
+                stage.complete();
+                continue;
+            }
+            // measured where the query finished, not after the completion
+            // executor got to it
+            f.whenComplete((result, t) -> stage.getLatency().observeNanosSince(started))
+                    .whenCompleteAsync((result, t) -> finish(item, result, t), completions);
+        }
+    }
+
+    private void finish(T item, R result, Throwable t) {
+        try {
+            if (t == null) {
+                stage.finished(outcome(result));
+                completed(item, result);
+            } else {
+                t = unwrap(t);
+                stage.finished(t instanceof SocketTimeoutException ? Stage.Outcome.TIMED_OUT : Stage.Outcome.FAILED);
+                failed(item, t);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            logger.warn("{} stage: handling {} failed: ", stage.getName(), item, e);
+        } finally {
+            inFlight.release();
+            stage.complete();
+        }
+    }
+
+    private static Throwable unwrap(Throwable t) {
+        while ((t instanceof CompletionException || t instanceof ExecutionException) && t.getCause() != null) {
+            t = t.getCause();
+        }
+        return t;
+    }
+
+    /**
+     * Starts the query for item. Runs on the worker thread and must not
+     * block.
+     */
+    protected abstract CompletableFuture<R> start(T item) throws Exception;
+
+    /**
+     * How a result that did not fail counts on /metrics, e.g. a probe that
+     * reports a timeout.
+     */
+    protected Stage.Outcome outcome(R result) {
+        return Stage.Outcome.COMPLETED;
+    }
+
+    protected abstract void completed(T item, R result) throws Exception;
+
+    protected abstract void failed(T item, Throwable t);
+}
@@ -0,0 +1,128 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 mieslingert.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.mieslinger.nsrrsetd.metrics;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed-bucket histogram for the Prometheus text format.
+ *
+ * Buckets and sum are LongAdders, so observe() from many threads, including
+ * the QueryEngine selector thread, never contends on one cache line and
+ * never allocates. Values are recorded as longs in the unit of the caller
+ * (nanoseconds for the latency histograms) and scaled on export.
+ *
+ * @author mieslingert
+ */
+public class Histogram {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final long[] bounds;
+    private final String[] le;
+    private final LongAdder[] buckets;
+    private final LongAdder sum = new LongAdder();
+    private final double unit;
+
+    /**
+     * @param unit factor from a recorded value to the exported one
+     * @param bounds upper bounds of the buckets, ascending, +Inf is added
+     */
+    public Histogram(double unit, long... bounds) {
+        this.bounds = bounds.clone();
+        this.unit = unit;
+        this.le = new String[bounds.length + 1];
+        this.buckets = new LongAdder[bounds.length + 1];
+        for (int i = 0; i < bounds.length; i++) {
+            le[i] = BigDecimal.valueOf(bounds[i] * unit).stripTrailingZeros().toPlainString();
+        }
+        le[bounds.length] = "+Inf";
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * DNS query and request latencies: 250us to 10s, recorded in
+     * nanoseconds, exported in seconds.
+     */
+    public static Histogram latency() {
+        return new Histogram(1e-9,
+                MS / 4, MS / 2, MS, 2 * MS + MS / 2, 5 * MS, 10 * MS, 25 * MS, 50 * MS,
+                100 * MS, 250 * MS, 500 * MS, SECOND, 2 * SECOND + SECOND / 2, 5 * SECOND, 10 * SECOND);
+    }
+
+    /**
+     * Zone transfers and warm-up cycles: 1s to 2h, recorded in
+     * nanoseconds, exported in seconds.
+     */
+    public static Histogram duration() {
+        return new Histogram(1e-9,
+                SECOND, 5 * SECOND, 10 * SECOND, 30 * SECOND, 60 * SECOND, 120 * SECOND,
+                300 * SECOND, 600 * SECOND, 1200 * SECOND, 1800 * SECOND, 3600 * SECOND, 7200 * SECOND);
+    }
+
+    public void observe(long value) {
+        int i = 0;
+        while (i < bounds.length && value > bounds[i]) {
+            i++;
+        }
+        buckets[i].increment();
+        sum.add(value);
+    }
+
+    public void observeNanosSince(long startNanos) {
+        observe(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    /**
+     * Writes the _bucket, _sum and _count samples of name. The buckets are
+     * read one after the other while observe() goes on, the count is taken
+     * from the buckets so that it matches the +Inf bucket.
+     *
+     * @param labels label pairs without braces like
+     * <code>stage="A"</code>, or null
+     */
+    public void write(MetricsWriter out, String name, String labels) {
+        long cumulative = 0;
+        String prefix = labels == null ? "" : labels + ",";
+        for (int i = 0; i < buckets.length; i++) {
+            cumulative += buckets[i].sum();
+            out.sample(name + "_bucket", prefix + "le=\"" + le[i] + "\"", cumulative);
+        }
+        out.sample(name + "_sum", labels, sum.sum() * unit);
+        out.sample(name + "_count", labels, cumulative);
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 mieslingert.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.mieslinger.nsrrsetd.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Supplier;
+
+/**
+ * Histograms of one metric told apart by the value of one label, like API
+ * latency by outcome. Label values must be a small, fixed set.
+ *
+ * @author mieslingert
+ */
+public class HistogramFamily {
+
+    private final String label;
+    private final Supplier<Histogram> factory;
+    private final ConcurrentSkipListMap<String, Histogram> histograms = new ConcurrentSkipListMap<>();
+
+    /**
+     * @param values label values exported from the start, even when nothing
+     * was observed yet
+     */
+    public HistogramFamily(String label, Supplier<Histogram> factory, String... values) {
+        this.label = label;
+        this.factory = factory;
+        for (String value : values) {
+            histograms.put(value, factory.get());
+        }
+    }
+
+    public Histogram get(String value) {
+        Histogram h = histograms.get(value);
+        return h != null ? h : histograms.computeIfAbsent(value, v -> factory.get());
+    }
+
+    public void write(MetricsWriter out, String name, String help) {
+        out.family(name, "histogram", help);
+        for (Map.Entry<String, Histogram> e : histograms.entrySet()) {
+            e.getValue().write(out, name, label + "=\"" + e.getKey() + "\"");
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 mieslingert.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.mieslinger.nsrrsetd.metrics;
+
+import java.io.PrintWriter;
+
+/**
+ * Prometheus text exposition format, version 0.0.4.
+ *
+ * Every family starts with family(), followed by its samples. Label values
+ * are written as given, callers only pass names of stages, outcomes and the
+ * like, which need no escaping.
+ *
+ * @author mieslingert
+ */
+public class MetricsWriter {
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final PrintWriter out;
+
+    public MetricsWriter(PrintWriter out) {
+        this.out = out;
+    }
+
+    /**
+     * @param type counter, gauge or histogram
+     */
+    public MetricsWriter family(String name, String type, String help) {
+        out.print("# HELP ");
+        out.print(name);
+        out.print(' ');
+        out.println(help);
+        out.print("# TYPE ");
+        out.print(name);
+        out.print(' ');
+        out.println(type);
+        return this;
+    }
+
+    public MetricsWriter counter(String name, String help, long value) {
+        family(name, "counter", help);
+        sample(name, null, value);
+        return this;
+    }
+
+    public MetricsWriter gauge(String name, String help, long value) {
+        family(name, "gauge", help);
+        sample(name, null, value);
+        return this;
+    }
+
+    public MetricsWriter histogram(String name, String help, Histogram h) {
+        family(name, "histogram", help);
+        h.write(this, name, null);
+        return this;
+    }
+
+    public void sample(String name, String labels, long value) {
+        name(name, labels);
+        out.println(value);
+    }
+
+    public void sample(String name, String labels, double value) {
+        name(name, labels);
+        out.println(value);
+    }
+
+    private void name(String name, String labels) {
+        out.print(name);
+        if (labels != null) {
+            out.print('{');
+            out.print(labels);
+            out.print('}');
+        }
+        out.print(' ');
+    }
+}
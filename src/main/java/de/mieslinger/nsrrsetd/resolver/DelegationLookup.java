@@ -0,0 +1,471 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 mieslingert.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.mieslinger.nsrrsetd.resolver;
+
+import de.mieslinger.nsrrsetd.store.LatencyIndex;
+import de.mieslinger.nsrrsetd.store.LatencyStats;
+import de.mieslinger.nsrrsetd.store.LatencyStore;
+import de.mieslinger.nsrrsetd.store.ResponseCache;
+import de.mieslinger.nsrrsetd.store.ZoneCutTrie;
+import de.mieslinger.nsrrsetd.transfer.QueryResult;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xbill.DNS.AAAARecord;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.NSRecord;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.SOARecord;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.TextParseException;
+import org.xbill.DNS.Type;
+
+/**
+ * Looks up the NS RRset delegating a zone: from the response cache, or by a
+ * hedged query to the servers of the closest known zone cut, best ranked
+ * first. Referrals to cuts below it are followed, cuts that delegate
+ * further (de.com) are learned and probed like TLDs from then on.
+ *
+ * Only records below the cut whose servers were asked are believed: NS
+ * sets and glue outside of it are ignored, so a server can not plant cuts
+ * or addresses for zones it is not responsible for.
+ *
+ * Shared by the API servlets, the future completes on a QueryEngine thread
+ * and always normally, failures are reported in the QueryResult. Lookups
+ * of a zone that is being queried right now attach to the running query
+ * and share its QueryResult instead of sending their own.
+ *
+ * @author mieslingert
+ */
+public class DelegationLookup {
+
+    private static final long MIN_HEDGE_DELAY = 10_000_000L;
+    private static final long REFERRAL_HEDGE_DELAY = 200_000_000L;
+    private static final int MAX_REFERRALS = 3;
+    private static final int MAX_REFERRAL_SERVERS = 4;
+    private final Logger logger = LoggerFactory.getLogger(DelegationLookup.class);
+    private final LatencyStore store;
+    private final ResponseCache cache;
+    private final HedgedQuery hedgedQuery;
+    private final HostAddressCache hostCache;
+    private final ZoneCutTrie zoneCuts;
+    private final Consumer<Name> newCut;
+    private final ConcurrentHashMap<Name, CompletableFuture<QueryResult>> running = new ConcurrentHashMap<>();
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    /**
+     * @param newCut told about every cut learned from a referral, must not
+     * block
+     */
+    public DelegationLookup(LatencyStore store, ResponseCache cache, HedgedQuery hedgedQuery,
+            HostAddressCache hostCache, ZoneCutTrie zoneCuts, Consumer<Name> newCut) {
+        this.store = store;
+        this.cache = cache;
+        this.hedgedQuery = hedgedQuery;
+        this.hostCache = hostCache;
+        this.zoneCuts = zoneCuts;
+        this.newCut = newCut;
+    }
+
+    /**
+     * Parses a zone as given by a client, "example.com" and "example.com."
+     * are the same zone.
+     */
+    public static Name parseZone(String zoneStr) throws TextParseException {
+        Name zone = new Name(zoneStr);
+        if (!zone.isAbsolute()) {
+            zone = new Name(zoneStr + ".");
+        }
+        return zone;
+    }
+
+    /**
+     * @param useCache false to always ask the TLD servers
+     */
+    public CompletableFuture<QueryResult> lookup(Name zone, boolean useCache) {
+        if (useCache) {
+            QueryResult qr = fromCache(zone);
+            if (qr != null) {
+                return CompletableFuture.completedFuture(qr);
+            }
+        }
+        CompletableFuture<QueryResult> mine = new CompletableFuture<>();
+        CompletableFuture<QueryResult> other = running.putIfAbsent(zone, mine);
+        if (other != null) {
+            coalesced.increment();
+            return other;
+        }
+        if (useCache) {
+            // the query we just missed may have been cached meanwhile
+            QueryResult qr = fromCache(zone);
+            if (qr != null) {
+                running.remove(zone, mine);
+                mine.complete(qr);
+                return mine;
+            }
+        }
+        queries.increment();
+        query(zone).whenComplete((qr, t) -> {
+            // cached before removal, so nobody misses both
+            running.remove(zone, mine);
+            if (t != null) {
+                mine.completeExceptionally(t);
+            } else {
+                mine.complete(qr);
+            }
+        });
+        return mine;
+    }
+
+    private QueryResult fromCache(Name zone) {
+        ResponseCache.Entry cached = cache.get(zone);
+        if (cached == null) {
+            return null;
+        }
+        QueryResult qr = new QueryResult();
+        qr.setZone(zone.toString(true));
+        qr.setStatus(cached.getStatus());
+        qr.setDelegation(cached.getDelegation());
+        qr.setRrSet(cached.getRrSet());
+        qr.setGlue(cached.getGlue());
+        qr.setTtl(cached.getTtl());
+        qr.setQueriedServer(cached.getQueriedServer());
+        qr.setAnsweredServer(cached.getQueriedServer());
+        qr.setQueryTime(cached.getQueryTime());
+        qr.setCached(true);
+        return qr;
+    }
+
+    /**
+     * The known zone cut to ask for the delegation of zone: the deepest one
+     * above it with ranked servers.
+     *
+     * @return null if there is none
+     */
+    public Name closestCut(Name zone) {
+        if (store == null) {
+            return null;
+        }
+        LatencyIndex index = store.getIndex();
+        return zoneCuts.closestEnclosing(zone, cut -> index.get(cut) != null);
+    }
+
+    private CompletableFuture<QueryResult> query(Name zone) {
+        Walk w = new Walk(zone);
+        if (zone.labels() < 2) {
+            return error(w.qr, "no TLD for " + zone);
+        }
+        Name cut = closestCut(zone);
+        LatencyIndex.Ranking servers = cut == null ? null : store.getIndex().get(cut);
+        if (servers == null) {
+            return error(w.qr, "no latency data for " + new Name(zone, zone.labels() - 2).toString(true));
+        }
+        zoneCuts.touch(cut);
+        w.qr.setQueriedServer(servers.best().getHostAddress());
+
+        // every server of the cut, best first, hedged after its RTO
+        List<InetAddress> candidates = new ArrayList<>(servers.size());
+        long[] hedgeDelays = new long[servers.size()];
+        for (int i = 0; i < servers.size(); i++) {
+            candidates.add(servers.getAddress(i));
+            hedgeDelays[i] = hedgeDelay(cut, servers.getAddress(i), servers.getScore(i));
+        }
+        return hedgedQuery.query(zone, Type.NS, candidates, hedgeDelays)
+                .thenCompose(hedged -> w.answered(cut, hedged));
+    }
+
+    /**
+     * One lookup, from the closest known cut down the referrals to zone.
+     */
+    private class Walk {
+
+        private final Name zone;
+        private final QueryResult qr = new QueryResult();
+        private final long begin = System.currentTimeMillis();
+        private int referrals = 0;
+        // the last referral followed
+        private Delegation referral;
+
+        private Walk(Name zone) {
+            this.zone = zone;
+            qr.setZone(zone.toString(true));
+        }
+
+        /**
+         * @param cut the zone whose servers were asked
+         */
+        private CompletableFuture<QueryResult> answered(Name cut, HedgedQuery.Result hedged) {
+            qr.setQueryTime(System.currentTimeMillis() - begin);
+            qr.setServersTried(qr.getServersTried() + hedged.getServersTried());
+
+            if (!hedged.isAnswered()) {
+                logger.debug("Lookup for {}/NS at {} failed, {} servers tried: {}",
+                        zone, cut, hedged.getServersTried(), hedged.getError());
+                if (referral == null) {
+                    qr.setStatus("Error");
+                    qr.setDiagnostics(hedged.getError());
+                    return CompletableFuture.completedFuture(qr);
+                }
+                // the enclosing cut is known, whether zone is cut below it is not
+                qr.setDiagnostics("servers of " + cut.toString(true) + ": " + hedged.getError());
+                set(Rcode.NOERROR, referral, referral.server, referral.ttl);
+                return CompletableFuture.completedFuture(qr);
+            }
+            Message response = hedged.getResponse();
+            String answeredIP = hedged.getServer().getHostAddress();
+            // HedgedQuery only returns NOERROR or NXDOMAIN
+            int rcode = response.getRcode();
+            Name owner = rcode == Rcode.NOERROR ? nsOwner(zone, cut, response) : null;
+
+            boolean delegated = owner != null && !owner.equals(cut);
+            if (delegated && referral != null) {
+                // we were referred to cut and it delegates further
+                if (zoneCuts.learn(cut)) {
+                    logger.info("learned zone cut {}", cut);
+                    newCut.accept(cut);
+                } else if (store != null && store.getIndex().get(cut) == null) {
+                    // known, but its servers were not probed lately
+                    newCut.accept(cut);
+                }
+            }
+            if (delegated && !owner.equals(zone)) {
+                // referral to a cut between the one asked and zone
+                referral = new Delegation(owner, cut, response, answeredIP);
+                if (referrals++ < MAX_REFERRALS) {
+                    return referredServers(owner, cut, referral.targets, response).thenCompose(addresses -> {
+                        if (addresses.isEmpty()) {
+                            return done(Rcode.NOERROR, referral, referral.server, referral.ttl);
+                        }
+                        long[] hedgeDelays = new long[addresses.size()];
+                        Arrays.fill(hedgeDelays, REFERRAL_HEDGE_DELAY);
+                        return hedgedQuery.query(zone, Type.NS, addresses, hedgeDelays)
+                                .thenCompose(h -> answered(owner, h));
+                    });
+                }
+                return done(Rcode.NOERROR, referral, referral.server, referral.ttl);
+            }
+            if (owner == null && rcode == Rcode.NOERROR && referral != null) {
+                // no cut at zone, the one we were referred to encloses it
+                return done(Rcode.NOERROR, referral, answeredIP, referral.ttl);
+            }
+            if (owner == null) {
+                return done(rcode, null, answeredIP, negativeTtl(response));
+            }
+            Delegation d = new Delegation(owner, cut, response, answeredIP);
+            return done(rcode, d, answeredIP, d.ttl);
+        }
+
+        /**
+         * @param d null for a negative answer
+         */
+        private void set(int rcode, Delegation d, String answeredIP, long ttl) {
+            qr.setStatus(Rcode.string(rcode));
+            qr.setAnsweredServer(answeredIP);
+            qr.setTtl(ttl);
+            if (d != null) {
+                qr.setDelegation(d.owner.toString(true));
+                qr.setRrSet(toStrings(d.targets));
+                qr.setGlue(d.glue.isEmpty() ? null : d.glue);
+            }
+        }
+
+        private CompletableFuture<QueryResult> done(int rcode, Delegation d, String answeredIP, long ttl) {
+            set(rcode, d, answeredIP, ttl);
+            cache.put(zone, qr, ttl);
+            return CompletableFuture.completedFuture(qr);
+        }
+    }
+
+    /**
+     * An NS RRset and the glue for its targets below the zone that was
+     * asked, as found in one response.
+     */
+    private static class Delegation {
+
+        private final Name owner;
+        private final List<Name> targets = new ArrayList<>();
+        private final Map<String, List<String>> glue = new LinkedHashMap<>();
+        private final long ttl;
+        private final String server;
+
+        private Delegation(Name owner, Name cut, Message response, String server) {
+            this.owner = owner;
+            this.server = server;
+            this.ttl = collectNs(owner, response, targets);
+            for (Record r : response.getSection(Section.ADDITIONAL)) {
+                if ((r.getType() == Type.A || r.getType() == Type.AAAA) && targets.contains(r.getName())
+                        && r.getName().subdomain(cut)) {
+                    glue.computeIfAbsent(r.getName().toString(true), host -> new ArrayList<>()).add(r.rdataToString());
+                }
+            }
+        }
+    }
+
+    /**
+     * Addresses of the servers a referral points to: the glue below cut in
+     * the additional section, or the first few resolved if there is none.
+     */
+    private CompletableFuture<List<InetAddress>> referredServers(Name owner, Name cut, List<Name> targets, Message response) {
+        List<InetAddress> addresses = new ArrayList<>();
+        for (Record r : response.getSection(Section.ADDITIONAL)) {
+            if (addresses.size() < MAX_REFERRAL_SERVERS && targets.contains(r.getName()) && r.getName().subdomain(cut)) {
+                if (r.getType() == Type.A) {
+                    addresses.add(((ARecord) r).getAddress());
+                } else if (r.getType() == Type.AAAA) {
+                    addresses.add(((AAAARecord) r).getAddress());
+                }
+            }
+        }
+        if (!addresses.isEmpty() || hostCache == null) {
+            return CompletableFuture.completedFuture(addresses);
+        }
+        logger.debug("no glue in referral to {}, resolving its servers", owner);
+        List<CompletableFuture<List<InetAddress>>> lookups = new ArrayList<>();
+        for (Name target : targets.subList(0, Math.min(targets.size(), MAX_REFERRAL_SERVERS))) {
+            lookups.add(hostCache.resolve(target, Type.A).exceptionally(t -> Collections.emptyList()));
+        }
+        return CompletableFuture.allOf(lookups.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            for (CompletableFuture<List<InetAddress>> f : lookups) {
+                for (InetAddress address : f.join()) {
+                    if (addresses.size() < MAX_REFERRAL_SERVERS) {
+                        addresses.add(address);
+                    }
+                }
+            }
+            return addresses;
+        });
+    }
+
+    /**
+     * @return lookups that sent a query to the TLD servers
+     */
+    public long getQueries() {
+        return queries.sum();
+    }
+
+    /**
+     * @return lookups that attached to a query already running
+     */
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    public int getRunning() {
+        return running.size();
+    }
+
+    private static CompletableFuture<QueryResult> error(QueryResult qr, String diagnostics) {
+        qr.setStatus("Error");
+        qr.setDiagnostics(diagnostics);
+        return CompletableFuture.completedFuture(qr);
+    }
+
+    /**
+     * How long to wait for a server before asking the next one as well:
+     * its retransmission timeout srtt + 4 * rttvar, the score while it has
+     * no RTT.
+     */
+    private long hedgeDelay(Name tld, InetAddress server, long score) {
+        LatencyStats st = store.getStats(tld, server);
+        long delay = st != null && st.getSrtt() > 0 ? st.getSrtt() + 4 * st.getRttvar() : score;
+        return Math.max(MIN_HEDGE_DELAY, delay);
+    }
+
+    /**
+     * Owner of the NS RRset delegating zone: zone itself if its NS records
+     * are in the answer, else the closest enclosing cut in the authority
+     * section. NS sets above cut, the zone that was asked, do not count.
+     *
+     * @return null if there is none
+     */
+    private static Name nsOwner(Name zone, Name cut, Message response) {
+        for (Record r : response.getSection(Section.ANSWER)) {
+            if (r.getType() == Type.NS && r.getName().equals(zone)) {
+                return zone;
+            }
+        }
+        for (Record r : response.getSection(Section.AUTHORITY)) {
+            if (r.getType() == Type.NS && zone.subdomain(r.getName()) && r.getName().subdomain(cut)) {
+                return r.getName();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Collects the targets of the NS RRset of owner, from the answer if it
+     * is there, else from the authority section.
+     *
+     * @return TTL of the RRset
+     */
+    private static long collectNs(Name owner, Message response, List<Name> targets) {
+        long ttl = Long.MAX_VALUE;
+        for (int section : new int[]{Section.ANSWER, Section.AUTHORITY}) {
+            for (Record r : response.getSection(section)) {
+                if (r.getType() == Type.NS && r.getName().equals(owner)) {
+                    targets.add(((NSRecord) r).getTarget());
+                    ttl = Math.min(ttl, r.getTTL());
+                }
+            }
+            if (!targets.isEmpty()) {
+                return ttl;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return the negative TTL from the SOA, 0 if there is none
+     */
+    private static long negativeTtl(Message response) {
+        for (Record r : response.getSection(Section.AUTHORITY)) {
+            if (r.getType() == Type.SOA) {
+                return Math.min(r.getTTL(), ((SOARecord) r).getMinimum());
+            }
+        }
+        return 0;
+    }
+
+    private static List<String> toStrings(List<Name> names) {
+        List<String> strings = new ArrayList<>(names.size());
+        for (Name n : names) {
+            strings.add(n.toString(true));
+        }
+        return strings;
+    }
+}
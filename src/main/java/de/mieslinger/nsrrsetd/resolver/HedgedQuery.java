@@ -0,0 +1,204 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 mieslingert.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.mieslinger.nsrrsetd.resolver;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Rcode;
+
+/**
+ * Asks a ranked list of servers, best first, within a total deadline.
+ *
+ * The next server is asked when the current one did not answer within its
+ * hedge delay, or right away when it failed or answered with something
+ * other than NOERROR or NXDOMAIN. The first valid answer wins, the queries
+ * still out are left to time out in the QueryEngine.
+ *
+ * @author mieslingert
+ */
+public class HedgedQuery {
+
+    private final Logger logger = LoggerFactory.getLogger(HedgedQuery.class);
+    private final QueryEngine engine;
+    private final ScheduledExecutorService timer;
+    private final Duration deadline;
+    private final int port;
+
+    /**
+     * @param port of the TLD servers, 53 unless they are stubs
+     */
+    public HedgedQuery(QueryEngine engine, ScheduledExecutorService timer, Duration deadline, int port) {
+        this.engine = engine;
+        this.timer = timer;
+        this.deadline = deadline;
+        this.port = port;
+    }
+
+    /**
+     * @param servers by preference
+     * @param hedgeDelays nanoseconds to wait for servers.get(i) before the
+     * next one is asked as well
+     * @return always completes normally, see Result.isAnswered()
+     */
+    public CompletableFuture<Result> query(Name name, int type, List<InetAddress> servers, long[] hedgeDelays) {
+        Hedge h = new Hedge(name, type, servers, hedgeDelays, System.nanoTime() + deadline.toNanos());
+        h.askNext();
+        return h.result;
+    }
+
+    private class Hedge {
+
+        private final Name name;
+        private final int type;
+        private final List<InetAddress> servers;
+        private final long[] hedgeDelays;
+        private final long deadline;
+        private final CompletableFuture<Result> result = new CompletableFuture<>();
+        private int next = 0;
+        private int outstanding = 0;
+        private String lastError = "no servers";
+        private ScheduledFuture<?> hedgeTimer;
+
+        private Hedge(Name name, int type, List<InetAddress> servers, long[] hedgeDelays, long deadline) {
+            this.name = name;
+            this.type = type;
+            this.servers = servers;
+            this.hedgeDelays = hedgeDelays;
+            this.deadline = deadline;
+        }
+
+        private synchronized void askNext() {
+            if (result.isDone()) {
+                return;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (next >= servers.size() || remaining <= 0) {
+                if (remaining <= 0) {
+                    lastError = "Timed Out";
+                }
+                if (outstanding == 0) {
+                    result.complete(new Result(null, null, next, lastError));
+                }
+                return;
+            }
+            int i = next++;
+            outstanding++;
+            InetAddress server = servers.get(i);
+            engine.send(QueryEngine.newQuery(name, type, false), new InetSocketAddress(server, port), Duration.ofNanos(remaining))
+                    .whenComplete((response, t) -> answered(server, response, t));
+            if (next < servers.size()) {
+                hedgeTimer = timer.schedule(this::askNext, Math.min(hedgeDelays[i], remaining), TimeUnit.NANOSECONDS);
+            }
+        }
+
+        private synchronized void answered(InetAddress server, Message response, Throwable t) {
+            outstanding--;
+            if (result.isDone()) {
+                return;
+            }
+            if (t == null && (response.getRcode() == Rcode.NOERROR || response.getRcode() == Rcode.NXDOMAIN)) {
+                cancelTimer();
+                result.complete(new Result(response, server, next, null));
+                return;
+            }
+            if (t instanceof CompletionException && t.getCause() != null) {
+                t = t.getCause();
+            }
+            if (t instanceof SocketTimeoutException) {
+                lastError = "Timed Out";
+            } else if (t != null) {
+                lastError = "Network Error";
+            } else {
+                lastError = Rcode.string(response.getRcode());
+            }
+            logger.debug("{} from {} for {}, failing over", lastError, server, name);
+            // no point waiting for the hedge delay
+            cancelTimer();
+            askNext();
+        }
+
+        private void cancelTimer() {
+            if (hedgeTimer != null) {
+                hedgeTimer.cancel(false);
+                hedgeTimer = null;
+            }
+        }
+    }
+
+    public static class Result {
+
+        private final Message response;
+        private final InetAddress server;
+        private final int serversTried;
+        private final String error;
+
+        private Result(Message response, InetAddress server, int serversTried, String error) {
+            this.response = response;
+            this.server = server;
+            this.serversTried = serversTried;
+            this.error = error;
+        }
+
+        public boolean isAnswered() {
+            return response != null;
+        }
+
+        /**
+         * @return the first valid answer, null if there is none
+         */
+        public Message getResponse() {
+            return response;
+        }
+
+        /**
+         * @return server that sent the answer, null if there is none
+         */
+        public InetAddress getServer() {
+            return server;
+        }
+
+        public int getServersTried() {
+            return serversTried;
+        }
+
+        /**
+         * @return why the last server failed, null if answered
+         */
+        public String getError() {
+            return error;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 mieslingert.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.mieslinger.nsrrsetd.resolver;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xbill.DNS.AAAARecord;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.SOARecord;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+
+/**
+ * Addresses of nameserver hosts, shared by all TLDs.
+ *
+ * Every host is asked for once per TTL. Requests for a host that is being
+ * resolved right now attach to the running query instead of sending their
+ * own. Negative answers are cached for the SOA minimum, failed queries for
+ * a minute.
+ *
+ * @author mieslingert
+ */
+public class HostAddressCache {
+
+    private static final long MIN_TTL = 30;
+    private static final long MAX_TTL = 86400;
+    private static final long NEGATIVE_TTL = 300;
+    private static final long FAILURE_TTL = 60;
+
+    private final Logger logger = LoggerFactory.getLogger(HostAddressCache.class);
+    private final ConcurrentHashMap<Name, Entry> entriesA = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Name, Entry> entriesAAAA = new ConcurrentHashMap<>();
+    private final QueryEngine engine;
+    private final InetSocketAddress resolver;
+    private final Duration timeout;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder joined = new LongAdder();
+    private final LongAdder queries = new LongAdder();
+
+    public HostAddressCache(QueryEngine engine, InetSocketAddress resolver, Duration timeout) {
+        this.engine = engine;
+        this.resolver = resolver;
+        this.timeout = timeout;
+    }
+
+    /**
+     * @param type Type.A or Type.AAAA
+     * @return the addresses of host, empty if it has none of that type
+     */
+    public CompletableFuture<List<InetAddress>> resolve(Name host, int type) {
+        ConcurrentHashMap<Name, Entry> entries = type == Type.AAAA ? entriesAAAA : entriesA;
+        while (true) {
+            long now = System.nanoTime();
+            Entry e = entries.get(host);
+            if (e != null && !e.isExpired(now)) {
+                if (e.future.isDone()) {
+                    hits.increment();
+                } else {
+                    joined.increment();
+                }
+                return e.future;
+            }
+            Entry fresh = new Entry();
+            boolean won = e == null ? entries.putIfAbsent(host, fresh) == null : entries.replace(host, e, fresh);
+            if (won) {
+                queries.increment();
+                query(host, type, fresh);
+                return fresh.future;
+            }
+        }
+    }
+
+    private void query(Name host, int type, Entry entry) {
+        engine.send(QueryEngine.newQuery(host, type, true), resolver, timeout).whenComplete((response, t) -> {
+            if (t != null) {
+                entry.expireIn(FAILURE_TTL);
+                entry.future.completeExceptionally(t);
+                return;
+            }
+            int rcode = response.getRcode();
+            if (rcode != Rcode.NOERROR && rcode != Rcode.NXDOMAIN) {
+                entry.expireIn(FAILURE_TTL);
+                entry.future.completeExceptionally(new IOException(Rcode.string(rcode)));
+                return;
+            }
+            List<InetAddress> addresses = new ArrayList<>();
+            long ttl = MAX_TTL;
+            for (Record r : response.getSection(Section.ANSWER)) {
+                if (r.getType() == Type.A && type == Type.A) {
+                    addresses.add(((ARecord) r).getAddress());
+                    ttl = Math.min(ttl, r.getTTL());
+                } else if (r.getType() == Type.AAAA && type == Type.AAAA) {
+                    addresses.add(((AAAARecord) r).getAddress());
+                    ttl = Math.min(ttl, r.getTTL());
+                } else if (r.getType() == Type.CNAME) {
+                    ttl = Math.min(ttl, r.getTTL());
+                }
+            }
+            if (addresses.isEmpty()) {
+                ttl = negativeTTL(response);
+                logger.debug("no {} record for {} ({})", Type.string(type), host, Rcode.string(rcode));
+            }
+            entry.expireIn(Math.max(MIN_TTL, ttl));
+            entry.future.complete(Collections.unmodifiableList(addresses));
+        });
+    }
+
+    private static long negativeTTL(Message response) {
+        for (Record r : response.getSection(Section.AUTHORITY)) {
+            if (r.getType() == Type.SOA) {
+                return Math.min(r.getTTL(), ((SOARecord) r).getMinimum());
+            }
+        }
+        return NEGATIVE_TTL;
+    }
+
+    /**
+     * Drops expired entries, resolve() replaces them anyway but hosts that
+     * left the root zone would stay forever.
+     */
+    public void purgeExpired() {
+        long now = System.nanoTime();
+        entriesA.values().removeIf(e -> e.isExpired(now));
+        entriesAAAA.values().removeIf(e -> e.isExpired(now));
+    }
+
+    public int size() {
+        return entriesA.size() + entriesAAAA.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getJoined() {
+        return joined.sum();
+    }
+
+    public long getQueries() {
+        return queries.sum();
+    }
+
+    private static class Entry {
+
+        private final CompletableFuture<List<InetAddress>> future = new CompletableFuture<>();
+        // stays in the future until the query finished
+        private volatile long expires = Long.MAX_VALUE;
+
+        private void expireIn(long seconds) {
+            expires = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        }
+
+        private boolean isExpired(long now) {
+            long exp = expires;
+            return exp != Long.MAX_VALUE && exp - now <= 0;
+        }
+    }
+}
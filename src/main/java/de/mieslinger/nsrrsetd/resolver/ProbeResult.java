@@ -0,0 +1,93 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 mieslingert.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.mieslinger.nsrrsetd.resolver;
+
+import java.net.InetSocketAddress;
+import org.xbill.DNS.Rcode;
+
+/**
+ * Outcome of a latency probe. A probe that gets no answer in time is a
+ * regular result with status TIMEOUT, not an exception.
+ *
+ * @author mieslingert
+ */
+public class ProbeResult {
+
+    public enum Status {
+        ANSWERED, TIMEOUT, ERROR
+    }
+
+    private final InetSocketAddress server;
+    private final Status status;
+    private final long rtt;
+    private final int rcode;
+    private final String diagnostics;
+
+    ProbeResult(InetSocketAddress server, Status status, long rtt, int rcode, String diagnostics) {
+        this.server = server;
+        this.status = status;
+        this.rtt = rtt;
+        this.rcode = rcode;
+        this.diagnostics = diagnostics;
+    }
+
+    public InetSocketAddress getServer() {
+        return server;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * @return nanoseconds between sending the datagram and receiving the
+     * answer, -1 unless ANSWERED
+     */
+    public long getRtt() {
+        return rtt;
+    }
+
+    /**
+     * @return rcode of the answer, -1 unless ANSWERED
+     */
+    public int getRcode() {
+        return rcode;
+    }
+
+    public boolean isNoError() {
+        return status == Status.ANSWERED && rcode == Rcode.NOERROR;
+    }
+
+    public String getDiagnostics() {
+        return diagnostics;
+    }
+
+    @Override
+    public String toString() {
+        if (status == Status.ANSWERED) {
+            return Rcode.string(rcode) + " from " + server + " in " + rtt / 1000 + "us";
+        }
+        return status + " " + server + (diagnostics == null ? "" : ": " + diagnostics);
+    }
+}
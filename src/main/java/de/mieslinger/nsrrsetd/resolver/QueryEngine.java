@@ -0,0 +1,645 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 mieslingert.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.mieslinger.nsrrsetd.resolver;
+
+import de.mieslinger.nsrrsetd.metrics.Histogram;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.BindException;
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.OPTRecord;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.SimpleResolver;
+
+/**
+ * Multiplexes DNS queries over a handful of UDP sockets driven by a single
+ * selector thread.
+ *
+ * Each query gets a message ID that is unique on its socket; responses are
+ * matched by socket, ID and source address and dropped otherwise. Truncated
+ * answers are retried over TCP with dnsjava's non-blocking SimpleResolver.
+ *
+ * Sockets are bound to random ports and replaced after QUERIES_PER_SOCKET
+ * queries, so a spoofed answer has to guess the port as well as the ID. A
+ * replaced socket is closed once its last query was answered or timed
+ * out.
+ *
+ * Latency probes send a pre-encoded query and take their nanoTime stamps
+ * right after the datagram left and right after the answer was read from
+ * the socket, the answer is not parsed beyond its header. Probes never
+ * fail, timeouts are reported in the ProbeResult.
+ *
+ * A query's deadline starts when it is submitted: one that waits for a
+ * full socket buffer times out like one that got no answer. On close()
+ * every query not answered yet fails with an IOException.
+ *
+ * Futures are completed on the selector thread. Callers that block or do
+ * real work when a query finishes must continue on their own executor
+ * (whenCompleteAsync and friends), never on the selector thread.
+ *
+ * RTTs of answered UDP queries go into two histograms: recursive queries
+ * to the resolver, and non-recursive queries and probes to authoritative
+ * servers.
+ *
+ * @author mieslingert
+ */
+public class QueryEngine implements Closeable {
+
+    private static final int EDNS_PAYLOAD_SIZE = 1232;
+    private static final int QUERIES_PER_SOCKET = 256;
+    private static final int MIN_PORT = 1024;
+    private static final int BIND_ATTEMPTS = 16;
+
+    private final Logger logger = LoggerFactory.getLogger(QueryEngine.class);
+    private final Selector selector;
+    private final Socket[] sockets4;
+    private final Socket[] sockets6;
+    private final ConcurrentLinkedQueue<Pending> submissions = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Histogram resolverRtt = Histogram.latency();
+    private final Histogram serverRtt = Histogram.latency();
+    private final LongAdder timeouts = new LongAdder();
+    private final Thread ioThread;
+    private volatile boolean keepOnRunning = true;
+
+    // only touched by the selector thread
+    private final Map<Long, Pending> outstanding = new HashMap<>();
+    private final PriorityQueue<Pending> deadlines = new PriorityQueue<>();
+    private final ArrayDeque<Pending> backlog = new ArrayDeque<>();
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocate(65535);
+    private int nextSocket = 0;
+    private int nextSocketKey = 0;
+    private final LongAdder socketsOpened = new LongAdder();
+
+    public QueryEngine(String name, int numSockets) throws IOException {
+        this.selector = Selector.open();
+        this.sockets4 = new Socket[numSockets];
+        this.sockets6 = new Socket[numSockets];
+        for (int i = 0; i < numSockets; i++) {
+            sockets4[i] = openSocket(StandardProtocolFamily.INET);
+            sockets6[i] = openSocket(StandardProtocolFamily.INET6);
+        }
+        this.ioThread = new Thread(this::ioLoop, name + "-io");
+        ioThread.setDaemon(true);
+        ioThread.start();
+    }
+
+    /**
+     * @return null if family is not available
+     */
+    private Socket openSocket(StandardProtocolFamily family) {
+        DatagramChannel ch;
+        try {
+            ch = DatagramChannel.open(family);
+        } catch (UnsupportedOperationException | IOException e) {
+            logger.info("no {} socket available: {}", family, e.toString());
+            return null;
+        }
+        try {
+            ch.configureBlocking(false);
+            // many answers can arrive between two selector rounds
+            ch.setOption(StandardSocketOptions.SO_RCVBUF, 1 << 20);
+            bindRandomPort(ch);
+            Socket socket = new Socket(ch, nextSocketKey++);
+            ch.register(selector, SelectionKey.OP_READ, socket);
+            socketsOpened.increment();
+            return socket;
+        } catch (IOException e) {
+            logger.warn("could not open {} socket: {}", family, e.toString());
+            closeQuietly(ch);
+            return null;
+        }
+    }
+
+    private static void bindRandomPort(DatagramChannel ch) throws IOException {
+        for (int i = 0; i < BIND_ATTEMPTS; i++) {
+            int port = MIN_PORT + ThreadLocalRandom.current().nextInt(0x10000 - MIN_PORT);
+            try {
+                ch.bind(new InetSocketAddress(port));
+                return;
+            } catch (BindException e) {
+                // taken, try another one
+            }
+        }
+        ch.bind(null);
+    }
+
+    private void closeQuietly(DatagramChannel ch) {
+        try {
+            ch.close();
+        } catch (IOException e) {
+            logger.debug("closing socket: {}", e.toString());
+        }
+    }
+
+    /**
+     * Replaces the socket of a slot that sent QUERIES_PER_SOCKET queries.
+     * If no new socket can be opened the old one stays in use.
+     */
+    private Socket socketFor(Socket[] sockets, int index, StandardProtocolFamily family) {
+        Socket socket = sockets[index];
+        if (socket == null || socket.sent < QUERIES_PER_SOCKET) {
+            return socket;
+        }
+        Socket fresh = openSocket(family);
+        if (fresh == null) {
+            socket.sent = 0;
+            return socket;
+        }
+        socket.retired = true;
+        socket.closeIfDone();
+        sockets[index] = fresh;
+        return fresh;
+    }
+
+    /**
+     * Builds a query for name/type with an EDNS OPT record so that large
+     * referrals fit in one datagram.
+     */
+    public static Message newQuery(Name name, int type, boolean recursionDesired) {
+        Message query = Message.newQuery(Record.newRecord(name, type, DClass.IN));
+        if (!recursionDesired) {
+            query.getHeader().unsetFlag(Flags.RD);
+        }
+        query.addRecord(new OPTRecord(EDNS_PAYLOAD_SIZE, 0, 0), Section.ADDITIONAL);
+        return query;
+    }
+
+    /**
+     * Sends query to server. The message ID of query is overwritten.
+     *
+     * The returned future fails with a SocketTimeoutException when no
+     * matching answer arrives in time and with an IOException on send
+     * errors.
+     */
+    public CompletableFuture<Message> send(Message query, InetSocketAddress server, Duration timeout) {
+        MessageQuery p = new MessageQuery(query, server, System.nanoTime() + timeout.toNanos());
+        submit(p);
+        return p.future;
+    }
+
+    /**
+     * Encodes a query for probe(), can be reused for any number of probes.
+     */
+    public static byte[] encodeProbe(Name name, int type) {
+        return newQuery(name, type, false).toWire();
+    }
+
+    /**
+     * Times one query to server. wire comes from encodeProbe() and is not
+     * modified. The returned future always completes normally.
+     */
+    public CompletableFuture<ProbeResult> probe(byte[] wire, InetSocketAddress server, Duration timeout) {
+        Probe p = new Probe(wire.clone(), server, System.nanoTime() + timeout.toNanos());
+        submit(p);
+        return p.future;
+    }
+
+    private void submit(Pending p) {
+        inFlight.incrementAndGet();
+        p.future().whenComplete((m, t) -> inFlight.decrementAndGet());
+        if (!keepOnRunning) {
+            p.fail(new IOException("query engine closed"));
+            return;
+        }
+        submissions.add(p);
+        // close() may have come after the check above and ioLoop() may
+        // have drained the submissions already, whoever takes p fails it
+        if (!keepOnRunning && submissions.remove(p)) {
+            p.fail(new IOException("query engine closed"));
+            return;
+        }
+        selector.wakeup();
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public Histogram getResolverRtt() {
+        return resolverRtt;
+    }
+
+    public Histogram getServerRtt() {
+        return serverRtt;
+    }
+
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    /**
+     * Sockets opened so far, including the rotations.
+     */
+    public long getSocketsOpened() {
+        return socketsOpened.sum();
+    }
+
+    @Override
+    public void close() {
+        keepOnRunning = false;
+        selector.wakeup();
+    }
+
+    private void ioLoop() {
+        while (keepOnRunning) {
+            try {
+                long timeoutMillis = 0;
+                if (!backlog.isEmpty()) {
+                    timeoutMillis = 1;
+                } else if (!outstanding.isEmpty()) {
+                    long nanos = deadlines.peek().deadline - System.nanoTime();
+                    timeoutMillis = Math.max(1, (nanos + 999_999) / 1_000_000);
+                }
+                selector.select(timeoutMillis);
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (key.isValid() && key.isReadable()) {
+                        receive((Socket) key.attachment());
+                    }
+                }
+
+                Pending p;
+                while ((p = submissions.poll()) != null) {
+                    backlog.add(p);
+                }
+                while ((p = backlog.peek()) != null) {
+                    if (!transmit(p)) {
+                        break;
+                    }
+                    backlog.poll();
+                }
+
+                expire();
+            } catch (Exception e) {
+                logger.warn("query engine loop: ", e);
+            }
+        }
+        Pending p;
+        while ((p = submissions.poll()) != null) {
+            backlog.add(p);
+        }
+        for (Pending q : backlog) {
+            q.fail(new IOException("query engine closed"));
+        }
+        for (Pending q : outstanding.values()) {
+            q.fail(new IOException("query engine closed"));
+            if (q.socket.retired) {
+                closeQuietly(q.socket.channel);
+            }
+        }
+        for (Socket[] sockets : new Socket[][]{sockets4, sockets6}) {
+            for (Socket socket : sockets) {
+                if (socket != null) {
+                    closeQuietly(socket.channel);
+                }
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            logger.debug("closing selector: {}", e.toString());
+        }
+    }
+
+    /**
+     * @return false if the socket buffer is full and p has to wait
+     */
+    private boolean transmit(Pending p) {
+        if (p.future().isDone()) {
+            return true;
+        }
+        boolean v6 = p.server.getAddress() instanceof Inet6Address;
+        Socket[] sockets = v6 ? sockets6 : sockets4;
+        int index = nextSocket++ % sockets.length;
+        Socket socket = socketFor(sockets, index, v6 ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET);
+        if (socket == null) {
+            p.fail(new IOException("no socket for " + p.server));
+            return true;
+        }
+
+        int id;
+        do {
+            id = ThreadLocalRandom.current().nextInt(0x10000);
+        } while (outstanding.containsKey(key(socket.key, id)));
+        p.setID(id);
+        p.key = key(socket.key, id);
+
+        try {
+            if (socket.channel.send(ByteBuffer.wrap(p.wire), p.server) == 0) {
+                return false;
+            }
+            p.sent = System.nanoTime();
+        } catch (IOException e) {
+            p.fail(e);
+            return true;
+        }
+        p.socket = socket;
+        socket.sent++;
+        socket.outstanding++;
+        outstanding.put(p.key, p);
+        deadlines.add(p);
+        return true;
+    }
+
+    private void receive(Socket socket) throws IOException {
+        while (socket.channel.isOpen()) {
+            receiveBuffer.clear();
+            SocketAddress source = socket.channel.receive(receiveBuffer);
+            if (source == null) {
+                return;
+            }
+            long received = System.nanoTime();
+            receiveBuffer.flip();
+            if (receiveBuffer.remaining() < 12) {
+                continue;
+            }
+            int id = receiveBuffer.getShort(0) & 0xFFFF;
+            Pending p = outstanding.get(key(socket.key, id));
+            if (p == null || !p.server.equals(source)) {
+                logger.debug("dropping unexpected answer id={} from {}", id, source);
+                continue;
+            }
+            if (!p.questionMatches(receiveBuffer)) {
+                logger.debug("dropping answer from {}: question does not match", source);
+                continue;
+            }
+            // the deadline entry stays queued, expire() skips finished queries
+            outstanding.remove(p.key);
+            socket.finished();
+            p.answered(receiveBuffer, received);
+        }
+    }
+
+    private void retryTCP(MessageQuery p) {
+        long remaining = p.deadline - System.nanoTime();
+        if (remaining <= 0) {
+            p.future.completeExceptionally(new SocketTimeoutException("Query timed out"));
+            return;
+        }
+        SimpleResolver r = new SimpleResolver(p.server);
+        r.setTCP(true);
+        r.setTimeout(Duration.ofNanos(remaining));
+        r.sendAsync(p.query).whenComplete((m, t) -> {
+            if (t != null) {
+                p.future.completeExceptionally(t);
+            } else {
+                p.future.complete(m);
+            }
+        });
+    }
+
+    private void expire() {
+        long now = System.nanoTime();
+        Pending p;
+        while ((p = deadlines.peek()) != null && p.deadline - now <= 0) {
+            deadlines.poll();
+            if (outstanding.get(p.key) == p) {
+                outstanding.remove(p.key);
+                p.socket.finished();
+                timeouts.increment();
+                p.timedOut();
+            }
+        }
+        // queries still waiting for a socket buffer, usually none
+        Iterator<Pending> it = backlog.iterator();
+        while (it.hasNext()) {
+            p = it.next();
+            if (p.deadline - now <= 0) {
+                it.remove();
+                timeouts.increment();
+                p.timedOut();
+            }
+        }
+    }
+
+    private static long key(int socketKey, int id) {
+        return ((long) socketKey << 16) | id;
+    }
+
+    /**
+     * A UDP socket and the queries sent through it, only touched by the
+     * selector thread.
+     */
+    private class Socket {
+
+        private final DatagramChannel channel;
+        private final int key;
+        private int sent;
+        private int outstanding;
+        private boolean retired;
+
+        private Socket(DatagramChannel channel, int key) {
+            this.channel = channel;
+            this.key = key;
+        }
+
+        private void finished() {
+            outstanding--;
+            closeIfDone();
+        }
+
+        private void closeIfDone() {
+            if (retired && outstanding == 0) {
+                closeQuietly(channel);
+            }
+        }
+    }
+
+    private abstract static class Pending implements Comparable<Pending> {
+
+        protected final byte[] wire;
+        protected final InetSocketAddress server;
+        protected final long deadline;
+        private final int questionEnd;
+        protected long sent;
+        private long key;
+        private Socket socket;
+
+        private Pending(byte[] wire, InetSocketAddress server, long deadline) {
+            this.wire = wire;
+            this.server = server;
+            this.deadline = deadline;
+            // our own queries have one uncompressed question
+            int pos = 12;
+            while (wire[pos] != 0) {
+                pos += wire[pos] + 1;
+            }
+            this.questionEnd = pos + 5;
+        }
+
+        protected void setID(int id) {
+            wire[0] = (byte) (id >>> 8);
+            wire[1] = (byte) id;
+        }
+
+        /**
+         * Compares the question section of the answer with ours, ignoring
+         * the case of ASCII letters.
+         */
+        private boolean questionMatches(ByteBuffer answer) {
+            if (answer.limit() < questionEnd || answer.getShort(4) != 1) {
+                return false;
+            }
+            for (int i = 12; i < questionEnd; i++) {
+                int a = wire[i];
+                int b = answer.get(i);
+                if (a != b && Character.toLowerCase(a) != Character.toLowerCase(b)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        protected abstract CompletableFuture<?> future();
+
+        protected abstract void answered(ByteBuffer answer, long received);
+
+        protected abstract void timedOut();
+
+        protected abstract void fail(IOException e);
+
+        @Override
+        public int compareTo(Pending o) {
+            return Long.compare(deadline, o.deadline);
+        }
+    }
+
+    private class MessageQuery extends Pending {
+
+        private final Message query;
+        private final boolean recursive;
+        private final CompletableFuture<Message> future = new CompletableFuture<>();
+
+        private MessageQuery(Message query, InetSocketAddress server, long deadline) {
+            super(query.toWire(), server, deadline);
+            this.query = query;
+            this.recursive = query.getHeader().getFlag(Flags.RD);
+        }
+
+        @Override
+        protected void setID(int id) {
+            super.setID(id);
+            // needed for a TCP retry
+            query.getHeader().setID(id);
+        }
+
+        @Override
+        protected CompletableFuture<?> future() {
+            return future;
+        }
+
+        @Override
+        protected void answered(ByteBuffer answer, long received) {
+            (recursive ? resolverRtt : serverRtt).observe(received - sent);
+            Message response;
+            try {
+                response = new Message(answer);
+            } catch (IOException e) {
+                future.completeExceptionally(e);
+                return;
+            }
+            if (response.getHeader().getFlag(Flags.TC)) {
+                retryTCP(this);
+            } else {
+                future.complete(response);
+            }
+        }
+
+        @Override
+        protected void timedOut() {
+            future.completeExceptionally(new SocketTimeoutException("Query timed out"));
+        }
+
+        @Override
+        protected void fail(IOException e) {
+            future.completeExceptionally(e);
+        }
+    }
+
+    private class Probe extends Pending {
+
+        private final CompletableFuture<ProbeResult> future = new CompletableFuture<>();
+
+        private Probe(byte[] wire, InetSocketAddress server, long deadline) {
+            super(wire, server, deadline);
+        }
+
+        @Override
+        protected CompletableFuture<?> future() {
+            return future;
+        }
+
+        /**
+         * Only the header is looked at, a truncated answer still tells the
+         * RTT.
+         */
+        @Override
+        protected void answered(ByteBuffer answer, long received) {
+            int rcode = answer.get(3) & 0x0F;
+            serverRtt.observe(received - sent);
+            future.complete(new ProbeResult(server, ProbeResult.Status.ANSWERED, received - sent, rcode, null));
+        }
+
+        @Override
+        protected void timedOut() {
+            future.complete(new ProbeResult(server, ProbeResult.Status.TIMEOUT, -1, -1, null));
+        }
+
+        @Override
+        protected void fail(IOException e) {
+            future.complete(new ProbeResult(server, ProbeResult.Status.ERROR, -1, -1, e.toString()));
+        }
+    }
+}
@@ -0,0 +1,456 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 mieslingert.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.mieslinger.nsrrsetd.server;
+
+import de.mieslinger.nsrrsetd.resolver.DelegationLookup;
+import de.mieslinger.nsrrsetd.transfer.QueryResult;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xbill.DNS.AAAARecord;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Header;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.NSRecord;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.OPTRecord;
+import org.xbill.DNS.Opcode;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+
+/**
+ * DNS front end to DelegationLookup: answers NS queries for any zone with
+ * the delegating NS RRset and the glue that came with it, over UDP and
+ * TCP. Everything else is REFUSED.
+ *
+ * One selector thread reads queries and writes TCP answers. Lookups
+ * complete on QueryEngine threads (or right away for cache hits); UDP
+ * answers are sent from there, TCP answers are handed to the selector
+ * thread. The NS RRset goes to the answer section if its owner is the
+ * zone asked for, else to the authority section like a referral.
+ *
+ * @author mieslingert
+ */
+public class DnsServer implements Closeable {
+
+    private static final int UDP_PAYLOAD_SIZE = 512;
+    private static final int EDNS_PAYLOAD_SIZE = 1232;
+    private static final int MAX_TCP_CONNECTIONS = 128;
+    private static final long TCP_IDLE_NANOS = 10_000_000_000L;
+
+    private final Logger logger = LoggerFactory.getLogger(DnsServer.class);
+    private final DelegationLookup lookup;
+    private final Selector selector;
+    private final DatagramChannel udp;
+    private final ServerSocketChannel tcp;
+    private final ConcurrentLinkedQueue<TcpAnswer> tcpAnswers = new ConcurrentLinkedQueue<>();
+    private final Thread ioThread;
+    private volatile boolean keepOnRunning = true;
+    private final LongAdder udpQueries = new LongAdder();
+    private final LongAdder tcpQueries = new LongAdder();
+    private final LongAdder refused = new LongAdder();
+    private final LongAdder truncated = new LongAdder();
+
+    // only touched by the selector thread
+    private final List<Connection> connections = new ArrayList<>();
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocate(65535);
+    private long lastIdleCheck = System.nanoTime();
+
+    public DnsServer(InetSocketAddress address, DelegationLookup lookup) throws IOException {
+        this.lookup = lookup;
+        this.selector = Selector.open();
+        this.udp = DatagramChannel.open();
+        udp.configureBlocking(false);
+        udp.setOption(StandardSocketOptions.SO_RCVBUF, 1 << 20);
+        udp.bind(address);
+        udp.register(selector, SelectionKey.OP_READ);
+        this.tcp = ServerSocketChannel.open();
+        tcp.configureBlocking(false);
+        tcp.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        tcp.bind(address);
+        tcp.register(selector, SelectionKey.OP_ACCEPT);
+        this.ioThread = new Thread(this::ioLoop, "DnsServer-io");
+        ioThread.setDaemon(true);
+        ioThread.start();
+        logger.info("answering NS queries on {} udp/tcp", address);
+    }
+
+    @Override
+    public void close() {
+        keepOnRunning = false;
+        selector.wakeup();
+    }
+
+    private void ioLoop() {
+        while (keepOnRunning) {
+            try {
+                selector.select(1000);
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.channel() == udp) {
+                        receiveUdp();
+                    } else if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        Connection c = (Connection) key.attachment();
+                        if (key.isReadable()) {
+                            c.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            c.write();
+                        }
+                    }
+                }
+
+                TcpAnswer a;
+                while ((a = tcpAnswers.poll()) != null) {
+                    a.connection.pending--;
+                    if (a.connection.key.isValid()) {
+                        a.connection.out.add(ByteBuffer.wrap(a.frame));
+                        a.connection.write();
+                    }
+                }
+
+                closeIdle();
+            } catch (Exception e) {
+                logger.warn("dns server loop: ", e);
+            }
+        }
+        for (Connection c : new ArrayList<>(connections)) {
+            c.close();
+        }
+        try {
+            udp.close();
+            tcp.close();
+            selector.close();
+        } catch (IOException e) {
+            logger.debug("closing dns server: {}", e.toString());
+        }
+    }
+
+    private void receiveUdp() throws IOException {
+        while (true) {
+            receiveBuffer.clear();
+            SocketAddress source = udp.receive(receiveBuffer);
+            if (source == null) {
+                return;
+            }
+            receiveBuffer.flip();
+            byte[] wire = new byte[receiveBuffer.remaining()];
+            receiveBuffer.get(wire);
+            udpQueries.increment();
+            handle(wire, true, answer -> {
+                try {
+                    udp.send(ByteBuffer.wrap(answer), source);
+                } catch (IOException e) {
+                    logger.debug("answer to {} not sent: {}", source, e.toString());
+                }
+            });
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel ch;
+        while ((ch = tcp.accept()) != null) {
+            if (connections.size() >= MAX_TCP_CONNECTIONS) {
+                logger.debug("too many tcp connections, closing {}", ch.getRemoteAddress());
+                ch.close();
+                continue;
+            }
+            ch.configureBlocking(false);
+            Connection c = new Connection(ch);
+            c.key = ch.register(selector, SelectionKey.OP_READ, c);
+            connections.add(c);
+        }
+    }
+
+    private void closeIdle() {
+        long now = System.nanoTime();
+        if (now - lastIdleCheck < 1_000_000_000L) {
+            return;
+        }
+        lastIdleCheck = now;
+        for (Connection c : new ArrayList<>(connections)) {
+            if (c.pending == 0 && c.out.isEmpty() && now - c.lastActive > TCP_IDLE_NANOS) {
+                c.close();
+            }
+        }
+    }
+
+    /**
+     * Parses one query and arranges for answer to get the wire format of
+     * the response, right away for errors and cache hits.
+     *
+     * @return false if the message is dropped and answer is never called
+     */
+    private boolean handle(byte[] wire, boolean overUdp, Consumer<byte[]> answer) {
+        Message query;
+        try {
+            query = new Message(wire);
+        } catch (IOException e) {
+            if (wire.length < Header.LENGTH) {
+                return false;
+            }
+            answer.accept(error(wire, Rcode.FORMERR));
+            return true;
+        }
+        if (query.getHeader().getFlag(Flags.QR)) {
+            return false;
+        }
+        int maxLength = UDP_PAYLOAD_SIZE;
+        OPTRecord opt = query.getOPT();
+        if (opt != null) {
+            maxLength = Math.max(UDP_PAYLOAD_SIZE, Math.min(opt.getPayloadSize(), EDNS_PAYLOAD_SIZE));
+        }
+        int limit = overUdp ? maxLength : 65535;
+        Record question = query.getQuestion();
+        if (query.getHeader().getOpcode() != Opcode.QUERY) {
+            answer.accept(response(query, Rcode.NOTIMP).toWire(limit));
+            return true;
+        }
+        if (question == null || question.getType() != Type.NS || question.getDClass() != DClass.IN) {
+            refused.increment();
+            answer.accept(response(query, Rcode.REFUSED).toWire(limit));
+            return true;
+        }
+        lookup.lookup(question.getName(), true).whenComplete((qr, t) -> {
+            Message r = t != null ? response(query, Rcode.SERVFAIL) : response(query, qr);
+            byte[] out = r.toWire(limit);
+            if ((out[2] & 0x02) != 0) {
+                truncated.increment();
+            }
+            answer.accept(out);
+        });
+        return true;
+    }
+
+    private static Message response(Message query, int rcode) {
+        Message r = new Message(query.getHeader().getID());
+        Header h = r.getHeader();
+        h.setFlag(Flags.QR);
+        if (query.getHeader().getFlag(Flags.RD)) {
+            h.setFlag(Flags.RD);
+        }
+        h.setOpcode(query.getHeader().getOpcode());
+        h.setRcode(rcode);
+        if (query.getQuestion() != null) {
+            r.addRecord(query.getQuestion(), Section.QUESTION);
+        }
+        if (query.getOPT() != null) {
+            r.addRecord(new OPTRecord(EDNS_PAYLOAD_SIZE, 0, 0), Section.ADDITIONAL);
+        }
+        return r;
+    }
+
+    private static Message response(Message query, QueryResult qr) {
+        if (qr.getStatus() == null || "Error".equals(qr.getStatus())) {
+            return response(query, Rcode.SERVFAIL);
+        }
+        if (!Rcode.string(Rcode.NOERROR).equals(qr.getStatus())) {
+            return response(query, Rcode.NXDOMAIN);
+        }
+        Message r = response(query, Rcode.NOERROR);
+        if (qr.getDelegation() == null || qr.getRrSet().isEmpty()) {
+            return r;
+        }
+        try {
+            Name owner = Name.fromString(qr.getDelegation(), Name.root);
+            int section = owner.equals(query.getQuestion().getName()) ? Section.ANSWER : Section.AUTHORITY;
+            for (String target : qr.getRrSet()) {
+                r.addRecord(new NSRecord(owner, DClass.IN, qr.getTtl(), Name.fromString(target, Name.root)), section);
+            }
+            Map<String, List<String>> glue = qr.getGlue();
+            if (glue != null) {
+                for (Map.Entry<String, List<String>> e : glue.entrySet()) {
+                    Name host = Name.fromString(e.getKey(), Name.root);
+                    for (String address : e.getValue()) {
+                        // literals, no lookup
+                        InetAddress a = InetAddress.getByName(address);
+                        r.addRecord(a instanceof Inet6Address
+                                ? new AAAARecord(host, DClass.IN, qr.getTtl(), a)
+                                : new ARecord(host, DClass.IN, qr.getTtl(), a), Section.ADDITIONAL);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            return response(query, Rcode.SERVFAIL);
+        }
+        return r;
+    }
+
+    /**
+     * Answer to a query that could not be parsed, from its header alone.
+     */
+    private static byte[] error(byte[] query, int rcode) {
+        byte[] r = new byte[Header.LENGTH];
+        r[0] = query[0];
+        r[1] = query[1];
+        // QR, opcode and RD of the query
+        r[2] = (byte) (0x80 | (query[2] & 0x79));
+        r[3] = (byte) rcode;
+        return r;
+    }
+
+    public long getUdpQueries() {
+        return udpQueries.sum();
+    }
+
+    public long getTcpQueries() {
+        return tcpQueries.sum();
+    }
+
+    public long getRefused() {
+        return refused.sum();
+    }
+
+    public long getTruncated() {
+        return truncated.sum();
+    }
+
+    private static class TcpAnswer {
+
+        private final Connection connection;
+        private final byte[] frame;
+
+        private TcpAnswer(Connection connection, byte[] frame) {
+            this.connection = connection;
+            this.frame = frame;
+        }
+    }
+
+    /**
+     * A TCP client, queries and answers are prefixed with their length.
+     * Only used by the selector thread.
+     */
+    private class Connection {
+
+        private final SocketChannel ch;
+        private final ByteBuffer in = ByteBuffer.allocate(2 + 65535);
+        private final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+        private SelectionKey key;
+        private long lastActive = System.nanoTime();
+        // lookups whose answers are not yet handed back
+        private int pending = 0;
+
+        private Connection(SocketChannel ch) {
+            this.ch = ch;
+        }
+
+        private void read() {
+            try {
+                if (ch.read(in) < 0) {
+                    close();
+                    return;
+                }
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            lastActive = System.nanoTime();
+            while (in.position() >= 2) {
+                int length = in.getShort(0) & 0xFFFF;
+                if (in.position() < 2 + length) {
+                    break;
+                }
+                byte[] wire = new byte[length];
+                in.flip();
+                in.position(2);
+                in.get(wire);
+                in.compact();
+                tcpQueries.increment();
+                pending++;
+                boolean answered = handle(wire, false, answer -> {
+                    byte[] frame = new byte[2 + answer.length];
+                    frame[0] = (byte) (answer.length >>> 8);
+                    frame[1] = (byte) answer.length;
+                    System.arraycopy(answer, 0, frame, 2, answer.length);
+                    tcpAnswers.add(new TcpAnswer(this, frame));
+                    selector.wakeup();
+                });
+                if (!answered) {
+                    // dropped, or closeIdle() would never reap this connection
+                    pending--;
+                }
+            }
+        }
+
+        private void write() {
+            try {
+                while (!out.isEmpty()) {
+                    ByteBuffer b = out.peek();
+                    ch.write(b);
+                    if (b.hasRemaining()) {
+                        break;
+                    }
+                    out.poll();
+                }
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            lastActive = System.nanoTime();
+            key.interestOps(out.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+
+        private void close() {
+            connections.remove(this);
+            key.cancel();
+            try {
+                ch.close();
+            } catch (IOException e) {
+                logger.debug("closing tcp connection: {}", e.toString());
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 mieslingert.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.mieslinger.nsrrsetd.servlets;
+
+import de.mieslinger.nsrrsetd.Main;
+import de.mieslinger.nsrrsetd.resolver.DelegationLookup;
+import de.mieslinger.nsrrsetd.transfer.QueryResult;
+import de.mieslinger.nsrrsetd.transfer.QueryResultJson;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.TextParseException;
+
+/**
+ * Bulk variant of /getDelegatingNSSet: the POST body lists one zone per
+ * line, the response is one JSON QueryResult per line in the order the
+ * lookups complete.
+ *
+ * At most Main.getBulkWindow() lookups are in flight, reading the body
+ * pauses while the window is full. Only the request thread writes to the
+ * response, results are handed over through a queue no longer than the
+ * window, so neither the batch nor its results are held in memory.
+ *
+ * @author mieslingert
+ */
+public class ServletBulkDelegatingNSSet extends HttpServlet {
+
+    private final Logger logger = LoggerFactory.getLogger(ServletBulkDelegatingNSSet.class);
+
+    /**
+     * Handles the HTTP <code>POST</code> method.
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @throws ServletException if a servlet-specific error occurs
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        long startTs = System.currentTimeMillis();
+        DelegationLookup lookup = Main.getDelegationLookup();
+        int window = Main.getBulkWindow();
+        BlockingQueue<QueryResult> done = new LinkedBlockingQueue<>();
+        QueryResultJson json = QueryResultJson.get();
+        int inFlight = 0;
+        int numZones = 0;
+
+        response.setContentType("application/x-ndjson");
+        response.setCharacterEncoding("UTF-8");
+        BufferedReader in = request.getReader();
+        ServletOutputStream out = response.getOutputStream();
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                numZones++;
+                Name zone;
+                try {
+                    zone = DelegationLookup.parseZone(line);
+                } catch (TextParseException e) {
+                    QueryResult qr = new QueryResult();
+                    qr.setZone(line);
+                    qr.setStatus("Error");
+                    qr.setDiagnostics(e.getMessage());
+                    json.write(qr).newline();
+                    continue;
+                }
+                while (inFlight >= window) {
+                    json.write(done.take()).newline();
+                    inFlight--;
+                }
+                inFlight++;
+                lookup.lookup(zone, true).whenComplete((qr, t) -> done.add(qr != null ? qr : failed(zone, t)));
+
+                // write what is finished, but do not wait for it
+                QueryResult qr;
+                while ((qr = done.poll()) != null) {
+                    json.write(qr).newline();
+                    inFlight--;
+                }
+                flush(json, out);
+            }
+            while (inFlight > 0) {
+                json.write(done.take()).newline();
+                inFlight--;
+                if (done.isEmpty()) {
+                    flush(json, out);
+                }
+            }
+            logger.debug("bulk lookup of {} zones for {} took {}ms",
+                    numZones, request.getRemoteAddr(), System.currentTimeMillis() - startTs);
+        } catch (IOException e) {
+            logger.debug("client {} went away after {} zones: {}", request.getRemoteAddr(), numZones, e.toString());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Hands the lines collected so far to the client.
+     */
+    private static void flush(QueryResultJson json, ServletOutputStream out) throws IOException {
+        if (json.length() > 0) {
+            json.writeTo(out);
+            out.flush();
+            json.clear();
+        }
+    }
+
+    private static QueryResult failed(Name zone, Throwable t) {
+        QueryResult qr = new QueryResult();
+        qr.setZone(zone.toString(true));
+        qr.setStatus("Error");
+        qr.setDiagnostics(t.toString());
+        return qr;
+    }
+
+    /**
+     * Returns a short description of the servlet.
+     *
+     * @return a String containing servlet description
+     */
+    @Override
+    public String getServletInfo() {
+        return "Bulk delegating NS RRset lookup, NDJSON";
+    }
+}
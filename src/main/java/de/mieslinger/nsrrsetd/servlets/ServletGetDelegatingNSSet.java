@@ -23,34 +23,28 @@
  */
 package de.mieslinger.nsrrsetd.servlets;
 
-import com.google.gson.Gson;
 import de.mieslinger.nsrrsetd.Main;
+import de.mieslinger.nsrrsetd.resolver.DelegationLookup;
+import de.mieslinger.nsrrsetd.store.LatencyIndex;
 import de.mieslinger.nsrrsetd.transfer.QueryResult;
+import de.mieslinger.nsrrsetd.transfer.QueryResultJson;
 import java.io.IOException;
-import java.io.InterruptedIOException;
 import java.io.PrintWriter;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.time.Duration;
 import java.util.Date;
-import java.util.Map;
-import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.xbill.DNS.Cache;
-import org.xbill.DNS.DClass;
-import org.xbill.DNS.Message;
 import org.xbill.DNS.Name;
-import org.xbill.DNS.Rcode;
-import org.xbill.DNS.Record;
-import org.xbill.DNS.SetResponse;
-import org.xbill.DNS.SimpleResolver;
-import org.xbill.DNS.Type;
+import org.xbill.DNS.TextParseException;
 
 /**
  *
@@ -69,192 +63,188 @@ public class ServletGetDelegatingNSSet extends HttpServlet {
      */
     private final Logger logger = LoggerFactory.getLogger(ServletGetDelegatingNSSet.class);
 
+    /**
+     * Lookups end by themselves within the hedging deadline of every
+     * referral followed, this only guards against one that never does.
+     */
+    private static final long ASYNC_TIMEOUT = 60000;
+
+    // lookups that finished after their request had timed out
+    private static final LongAdder lateLookups = new LongAdder();
+
     protected void processRequest(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
         long startTs = System.currentTimeMillis();
+        long started = System.nanoTime();
 
-        PrintWriter out = response.getWriter();
-        Connection c = Main.getDbConn();
-        String bestIP = null;
-        QueryResult qr = new QueryResult();
-        boolean debug = true;
+        // debug output wants the live query
+        boolean debug = request.getParameter("debug") != null;
+        String zoneStr = request.getPathInfo() == null ? "" : request.getPathInfo().substring(1);
+        logger.debug("zoneStr: {}", zoneStr);
 
+        Name zone;
         try {
-            String strDebug = request.getParameter("debug");
-            if (strDebug == null) {
-                debug = false;
-            }
-
-            String zoneStr = request.getPathInfo().substring(1);
-            logger.debug("zoneStr: {}", zoneStr);
-
-            Name zone = new Name(zoneStr);
-            if (!zone.isAbsolute()) {
-                zone = new Name(zoneStr + ".");
-            }
-
-            logger.debug("zone: {}", zone);
-
-            int numLabels = zone.labels();
-            logger.debug("numLabels: {}", numLabels);
-
-            /*for (int i = 0; i <= numLabels; i++) {
-                logger.debug("label({}): {}", i, zone.getLabelString(i));
-            }*/
-            String tld = zone.getLabelString(numLabels - 2);
-
-            logger.debug("TLD: {}", tld);
-
-            TreeMap<Long, String[]> servers = new TreeMap<Long, String[]>();
+            zone = DelegationLookup.parseZone(zoneStr);
+        } catch (TextParseException e) {
+            PrintWriter out = response.getWriter();
+            out.println(e.toString());
+            out.close();
+            Main.getApiLatency().get("invalid").observeNanosSince(started);
+            return;
+        }
+        logger.debug("zone: {}", zone);
+
+        CompletableFuture<QueryResult> lookup = Main.getDelegationLookup().lookup(zone, !debug);
+        if (lookup.isDone()) {
+            // cache hit, no need to go async
+            QueryResult qr = lookup.join();
+            respond(request, response, zone, qr, debug, startTs);
+            Main.getApiLatency().get(outcome(qr)).observeNanosSince(started);
+            return;
+        }
 
-            PreparedStatement st = c.prepareStatement("select tld, ip, latency"
-                    + " from serverLatency"
-                    + " where tld = ?"
-                    + " order by latency");
-            st.setString(1, tld);
-            ResultSet rs = st.executeQuery();
-            int i = 1;
-            while (rs.next()) {
-                if (i == 1) {
-                    bestIP = rs.getString(2);
-                    qr.setQueriedServer(bestIP);
+        // the Jetty thread is free while the TLD servers are asked, the
+        // response is written once the lookup completed
+        AsyncContext ac = request.startAsync();
+        ac.setTimeout(ASYNC_TIMEOUT);
+        // whoever sets it owns the response: the lookup or the timeout
+        AtomicBoolean answered = new AtomicBoolean();
+        ac.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) throws IOException {
+                if (answered.compareAndSet(false, true)) {
+                    logger.warn("lookup for {} did not finish in {}ms", zone, ASYNC_TIMEOUT);
+                    response.sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+                    ac.complete();
+                    Main.getApiLatency().get("timeout").observeNanosSince(started);
                 }
-                String[] server = new String[3];
-                server[0] = rs.getString(1);
-                server[1] = rs.getString(2);
-                Long l = rs.getLong(3);
-                server[2] = l.toString();
-                servers.put(l, server);
-                i++;
             }
-            rs.close();
-            st.close();
-            logger.debug("BestIP: {}", bestIP);
-
-            SimpleResolver r = new SimpleResolver(bestIP);
-            r.setTimeout(Duration.ofSeconds(20));
-
-            int type = Type.NS;
 
-            Record question = Record.newRecord(zone, type, DClass.IN);
-            Message query = Message.newQuery(question);
-            Message dnsResponse;
-            long begin = System.currentTimeMillis();
-
-            boolean timedout = false;
-            boolean networkerror = false;
-            boolean badresponse = false;
-            String badresponse_error;
-            SetResponse sr;
-
-            try {
-                dnsResponse = r.send(query);
-            } catch (Exception e) {
-                logger.debug(
-                        "Lookup for {}/{}, id={} failed using server {}",
-                        zone,
-                        Type.string(query.getQuestion().getType()),
-                        query.getHeader().getID(),
-                        r,
-                        e);
-
-                // A network error occurred.  Press on.
-                if (e instanceof InterruptedIOException) {
-                    timedout = true;
-                    qr.setStatus("Error");
-                    qr.setDiagnostics("Timed Out");
+            @Override
+            public void onComplete(AsyncEvent event) {
+            }
 
-                } else {
-                    networkerror = true;
-                    qr.setStatus("Error");
-                    qr.setDiagnostics("Network Error");
+            @Override
+            public void onError(AsyncEvent event) {
+            }
 
-                }
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+        // lookups complete on the QueryEngine thread, which must never wait
+        // for a slow client: the response is written on a Jetty thread
+        lookup.whenComplete((qr, t) -> {
+            if (answered.get()) {
+                lateLookup(zone);
                 return;
             }
-            long end = System.currentTimeMillis();
-            long latency = end - begin;
-            qr.setQueryTime(latency);
-
-            int rcode = dnsResponse.getHeader().getRcode();
-            if (rcode != Rcode.NOERROR && rcode != Rcode.NXDOMAIN) {
-                // The server we contacted is broken or otherwise unhelpful.
-                // Press on.
-                badresponse = true;
-                badresponse_error = Rcode.string(rcode);
-
-                qr.setStatus("Error");
-                qr.setDiagnostics(Rcode.string(rcode));
-            } else {
-                qr.setStatus(Rcode.string(rcode));
+            try {
+                ac.start(() -> {
+                    if (!answered.compareAndSet(false, true)) {
+                        lateLookup(zone);
+                        return;
+                    }
+                    try {
+                        if (t != null) {
+                            response.getWriter().println(t.toString());
+                        } else {
+                            respond(request, response, zone, qr, debug, startTs);
+                        }
+                    } catch (Exception e) {
+                        logger.warn("response for {} failed: {}", zone, e.toString());
+                    } finally {
+                        ac.complete();
+                        Main.getApiLatency().get(t != null ? "error" : outcome(qr)).observeNanosSince(started);
+                    }
+                });
+            } catch (IllegalStateException e) {
+                // the timeout completed the request in the meantime
+                lateLookup(zone);
             }
+        });
+    }
 
-            if (!query.getQuestion().equals(dnsResponse.getQuestion())) {
-                // The answer doesn't match the question.  That's not good.
-                badresponse = true;
-                badresponse_error = "response does not match query";
+    /**
+     * Counts a lookup that finished after the timeout answered its request.
+     */
+    private void lateLookup(Name zone) {
+        lateLookups.increment();
+        logger.info("lookup for {} finished after its request timed out", zone);
+    }
 
-                qr.setStatus("Error");
-                qr.setDiagnostics("response does not match query");
-            }
+    public static long getLateLookups() {
+        return lateLookups.sum();
+    }
 
-            Cache cache = new Cache();
-            sr = cache.addMessage(dnsResponse);
-            if (sr.isSuccessful() || sr.isDelegation()) {
-                qr.setNsServers(sr);
-            }
+    /**
+     * Label of the API latency histogram. Rcodes other than NOERROR and
+     * NXDOMAIN count as error, to keep the set of labels fixed.
+     */
+    private static String outcome(QueryResult qr) {
+        if (qr.isCached()) {
+            return "cached";
+        }
+        if ("NOERROR".equals(qr.getStatus())) {
+            return "noerror";
+        }
+        if ("NXDOMAIN".equals(qr.getStatus())) {
+            return "nxdomain";
+        }
+        return "error";
+    }
 
-            /*
-            public class QueryResult {
+    private void respond(HttpServletRequest request, HttpServletResponse response,
+            Name zone, QueryResult qr, boolean debug, long startTs) throws IOException {
+        if (!debug) {
+            // return JSON
+            response.setContentType("application/json");
+            response.setCharacterEncoding("UTF-8");
+            QueryResultJson.get().write(qr).writeTo(response.getOutputStream());
+            return;
+        }
 
-             private long queryTime;
-             private String status; // NXDOMAIN; NOERROR; Error
-             private String[] nsServers; // NULL if NXDOMAIN or Error
-             private String queriedServer;
-             private String diagnostics;
-             */
-            if (debug) {
-                // HTML output
-                response.setContentType("text/html;charset=UTF-8");
+        PrintWriter out = response.getWriter();
 
-                out.println("<html>");
-                out.println("<head>");
-                out.println("<title>Servlet Delegating NS RRSet");
-                out.println("</title>");
-                out.println("<body>");
+        try {
+            // HTML output
+            response.setContentType("text/html;charset=UTF-8");
+
+            out.println("<html>");
+            out.println("<head>");
+            out.println("<title>Servlet Delegating NS RRSet");
+            out.println("</title>");
+            out.println("<body>");
 
-                out.println("request.getPathInfo(): " + zoneStr + "<br>");
+            out.println("request.getPathInfo(): " + request.getPathInfo() + "<br>");
 
-                out.println("<h1>Cache content for " + tld + "</h1>");
+            Name cut = Main.getDelegationLookup().closestCut(zone);
+            if (cut != null) {
+                LatencyIndex.Ranking servers = Main.getLatencyStore().getIndex().get(cut);
+                out.println("<h1>Cache content for " + cut.toString(true) + "</h1>");
                 out.println("<table>");
-                for (Map.Entry<Long, String[]> entry : servers.entrySet()) {
-                    String[] server = entry.getValue();
-                    out.format("<tr><td>%s</td><td>%s</td><td>%s</td></tr>\n", server[0], server[1], server[2]);
+                for (int i = 0; servers != null && i < servers.size(); i++) {
+                    out.format("<tr><td>%s</td><td>%s</td><td>%d</td></tr>\n",
+                            cut.toString(true), servers.getAddress(i).getHostAddress(), servers.getScore(i) / 1000);
                 }
                 out.println("</table>");
-
-                // check bestIP not null
-                out.println("<h1>Delegating NS RRSet for " + zone.toString(true) + "</h1>");
-                out.format("Query NS Records for zone %s from server %s<br>", zone.toString(true), bestIP);
-                out.format("Queried %s/%s, id=%d: %s<br>\n", zone, Type.string(type), dnsResponse.getHeader().getID(), sr);
-
-                out.println("Query took " + latency + "ms");
-                out.println("<hr>");
-                out.println("Session und Connection Information:<br>");
-                out.println("RemoteAddress: " + request.getRemoteAddr());
-                out.println("<hr>");
-                out.println("Generated at: " + new Date().toString() + "<br>");
-                out.println("Total generation time: " + (System.currentTimeMillis() - startTs) + "ms<br>");
-                out.println("</body>");
-                out.println("</html>");
-            } else {
-                // return JSON
-                String qrJsonString = new Gson().toJson(qr);
-                response.setContentType("application/json");
-                response.setCharacterEncoding("UTF-8");
-                out.print(qrJsonString);
-
             }
+
+            out.println("<h1>Delegating NS RRSet for " + zone.toString(true) + "</h1>");
+            out.format("Query NS Records for zone %s from server %s, answered by %s after %d servers<br>",
+                    zone.toString(true), qr.getQueriedServer(), qr.getAnsweredServer(), qr.getServersTried());
+            out.format("Queried %s/NS: %s %s %s<br>\n", zone, qr.getStatus(), qr.getRrSet(),
+                    qr.getDiagnostics() == null ? "" : qr.getDiagnostics());
+
+            out.println("Query took " + qr.getQueryTime() + "ms");
+            out.println("<hr>");
+            out.println("Session und Connection Information:<br>");
+            out.println("RemoteAddress: " + request.getRemoteAddr());
+            out.println("<hr>");
+            out.println("Generated at: " + new Date().toString() + "<br>");
+            out.println("Total generation time: " + (System.currentTimeMillis() - startTs) + "ms<br>");
+            out.println("</body>");
+            out.println("</html>");
         } catch (Exception e) {
             out.println(e.toString());
             e.printStackTrace();
@@ -0,0 +1,209 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 mieslingert.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.mieslinger.nsrrsetd.servlets;
+
+import de.mieslinger.nsrrsetd.Main;
+import de.mieslinger.nsrrsetd.background.RootZoneRefresh;
+import de.mieslinger.nsrrsetd.background.Stage;
+import de.mieslinger.nsrrsetd.metrics.MetricsWriter;
+import de.mieslinger.nsrrsetd.resolver.DelegationLookup;
+import de.mieslinger.nsrrsetd.resolver.HostAddressCache;
+import de.mieslinger.nsrrsetd.resolver.QueryEngine;
+import de.mieslinger.nsrrsetd.server.DnsServer;
+import de.mieslinger.nsrrsetd.store.DelegationIndex;
+import de.mieslinger.nsrrsetd.store.LatencyStore;
+import de.mieslinger.nsrrsetd.store.ResponseCache;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Locale;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Counters, gauges and histograms in the Prometheus text format.
+ *
+ * Everything is read from the LongAdders of the components, a scrape does
+ * not touch the latency store or the database.
+ *
+ * @author mieslingert
+ */
+public class ServletMetrics extends HttpServlet {
+
+    /**
+     * Processes requests for both HTTP <code>GET</code> and <code>POST</code>
+     * methods.
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @throws ServletException if a servlet-specific error occurs
+     * @throws IOException if an I/O error occurs
+     */
+    protected void processRequest(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+
+        response.setContentType(MetricsWriter.CONTENT_TYPE);
+        PrintWriter out = response.getWriter();
+        try {
+            MetricsWriter m = new MetricsWriter(out);
+            writeStages(m);
+            writeQueries(m);
+            writeApi(m);
+            writeCaches(m);
+            writeRootZone(m);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeStages(MetricsWriter m) {
+        List<Stage<?>> stages = Main.getStages();
+        m.family("nsrrsetd_stage_enqueued_total", "counter", "Items put into a pipeline stage.");
+        for (Stage<?> stage : stages) {
+            m.sample("nsrrsetd_stage_enqueued_total", stageLabel(stage), stage.getEnqueued());
+        }
+        m.family("nsrrsetd_stage_finished_total", "counter", "Items whose query finished, by outcome.");
+        for (Stage<?> stage : stages) {
+            for (Stage.Outcome outcome : Stage.Outcome.values()) {
+                m.sample("nsrrsetd_stage_finished_total",
+                        stageLabel(stage) + ",outcome=\"" + outcome.name().toLowerCase(Locale.ROOT) + "\"",
+                        stage.getFinished(outcome));
+            }
+        }
+        m.family("nsrrsetd_stage_queue_size", "gauge", "Items waiting in the queue of a stage.");
+        for (Stage<?> stage : stages) {
+            m.sample("nsrrsetd_stage_queue_size", stageLabel(stage), stage.size());
+        }
+        m.family("nsrrsetd_stage_pending", "gauge", "Items put into a stage and not completed yet.");
+        for (Stage<?> stage : stages) {
+            m.sample("nsrrsetd_stage_pending", stageLabel(stage), stage.pending());
+        }
+        m.family("nsrrsetd_stage_query_duration_seconds", "histogram", "Time from starting the query of an item until it finished.");
+        for (Stage<?> stage : stages) {
+            stage.getLatency().write(m, "nsrrsetd_stage_query_duration_seconds", stageLabel(stage));
+        }
+        m.histogram("nsrrsetd_cycle_duration_seconds", "Duration of the warm-up cycles.", Main.getCycleDuration());
+    }
+
+    private static String stageLabel(Stage<?> stage) {
+        return "stage=\"" + stage.getName() + "\"";
+    }
+
+    private static void writeQueries(MetricsWriter m) {
+        QueryEngine engine = Main.getQueryEngine();
+        m.histogram("nsrrsetd_resolver_rtt_seconds", "RTT of answered recursive queries to the resolver.",
+                engine.getResolverRtt());
+        m.histogram("nsrrsetd_server_rtt_seconds", "RTT of answered non-recursive queries and probes to TLD servers and zone cuts.",
+                engine.getServerRtt());
+        m.counter("nsrrsetd_query_timeouts_total", "UDP queries and probes without an answer before their deadline.",
+                engine.getTimeouts());
+        m.gauge("nsrrsetd_queries_in_flight", "Queries and probes waiting for an answer.", engine.getInFlight());
+        m.counter("nsrrsetd_query_sockets_opened_total", "UDP sockets opened on random ports, replacements included.",
+                engine.getSocketsOpened());
+    }
+
+    private static void writeApi(MetricsWriter m) {
+        Main.getApiLatency().write(m, "nsrrsetd_api_request_duration_seconds",
+                "Latency of /getDelegatingNSSet by outcome.");
+        m.counter("nsrrsetd_api_late_lookups_total", "Lookups that finished after their request had timed out.",
+                ServletGetDelegatingNSSet.getLateLookups());
+        DelegationLookup dl = Main.getDelegationLookup();
+        m.counter("nsrrsetd_delegation_lookups_total", "Lookups that asked the TLD servers.", dl.getQueries());
+        m.counter("nsrrsetd_delegation_lookups_coalesced_total", "Lookups that joined a running one for the same zone.",
+                dl.getCoalesced());
+        DnsServer ds = Main.getDnsServer();
+        if (ds != null) {
+            m.family("nsrrsetd_dns_queries_total", "counter", "Queries to the DNS front end.");
+            m.sample("nsrrsetd_dns_queries_total", "transport=\"udp\"", ds.getUdpQueries());
+            m.sample("nsrrsetd_dns_queries_total", "transport=\"tcp\"", ds.getTcpQueries());
+            m.counter("nsrrsetd_dns_refused_total", "Queries refused by the DNS front end.", ds.getRefused());
+            m.counter("nsrrsetd_dns_truncated_total", "UDP answers sent truncated.", ds.getTruncated());
+        }
+    }
+
+    private static void writeCaches(MetricsWriter m) {
+        ResponseCache rc = Main.getResponseCache();
+        m.family("nsrrsetd_response_cache_lookups_total", "counter", "API response cache lookups by result.");
+        m.sample("nsrrsetd_response_cache_lookups_total", "result=\"hit\"", rc.getHits());
+        m.sample("nsrrsetd_response_cache_lookups_total", "result=\"negative_hit\"", rc.getNegativeHits());
+        m.sample("nsrrsetd_response_cache_lookups_total", "result=\"miss\"", rc.getMisses());
+        m.counter("nsrrsetd_response_cache_evictions_total", "Entries evicted from the API response cache.", rc.getEvictions());
+        m.gauge("nsrrsetd_response_cache_entries", "Entries in the API response cache.", rc.size());
+
+        HostAddressCache hc = Main.getHostCache();
+        m.family("nsrrsetd_host_cache_lookups_total", "counter", "Nameserver address lookups by result.");
+        m.sample("nsrrsetd_host_cache_lookups_total", "result=\"hit\"", hc.getHits());
+        m.sample("nsrrsetd_host_cache_lookups_total", "result=\"joined\"", hc.getJoined());
+        m.sample("nsrrsetd_host_cache_lookups_total", "result=\"miss\"", hc.getQueries());
+        m.gauge("nsrrsetd_host_cache_entries", "Entries in the nameserver address cache.", hc.size());
+
+        LatencyStore ls = Main.getLatencyStore();
+        if (ls != null) {
+            m.gauge("nsrrsetd_latency_store_entries", "Servers with latency data.", ls.size());
+            m.gauge("nsrrsetd_latency_store_queue_depth", "Latency rows waiting for the database writer.", ls.getQueueDepth());
+        }
+    }
+
+    private static void writeRootZone(MetricsWriter m) {
+        RootZoneRefresh rz = Main.getRootZone();
+        m.histogram("nsrrsetd_axfr_duration_seconds", "Duration of full transfers of the root zone.", rz.getAxfrDuration());
+        m.histogram("nsrrsetd_ixfr_duration_seconds", "Duration of incremental transfers of the root zone.", rz.getIxfrDuration());
+        m.gauge("nsrrsetd_axfr_records", "Records in the last full transfer of the root zone.", rz.getAxfrRecords());
+        m.counter("nsrrsetd_root_zone_refresh_failures_total", "Failed scheduled SOA checks and transfers.", rz.getFailures());
+        DelegationIndex index = Main.getDelegationIndex();
+        if (index != null) {
+            m.gauge("nsrrsetd_root_zone_delegations", "Delegations in the root zone.", index.size());
+            m.gauge("nsrrsetd_root_zone_serial", "SOA serial of the root zone.", index.getSerial());
+        }
+        m.gauge("nsrrsetd_zone_cuts_learned", "Zone cuts below the TLDs learned from referrals.",
+                Main.getZoneCuts().learnedSize());
+    }
+
+// <editor-fold defaultstate="collapsed" desc="HttpServlet methods. Click on the + sign on the left to edit the code.">
+    /**
+     * Handles the HTTP <code>GET</code> method.
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @throws ServletException if a servlet-specific error occurs
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        processRequest(request, response);
+    }
+
+    /**
+     * Returns a short description of the servlet.
+     *
+     * @return a String containing servlet description
+     */
+    @Override
+    public String getServletInfo() {
+        return "Prometheus metrics";
+    }// </editor-fold>
+}
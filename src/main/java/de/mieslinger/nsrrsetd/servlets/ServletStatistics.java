@@ -23,25 +23,70 @@
  */
 package de.mieslinger.nsrrsetd.servlets;
 
+import com.google.gson.stream.JsonWriter;
 import de.mieslinger.nsrrsetd.Main;
+import de.mieslinger.nsrrsetd.store.LatencyIndex;
+import de.mieslinger.nsrrsetd.store.LatencyStats;
+import de.mieslinger.nsrrsetd.store.LatencyStore;
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.util.Date;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.TextParseException;
 
 /**
+ * The latency store, one page at a time.
+ *
+ * Parameters: format=json, tld=&lt;zone&gt; for the servers of one TLD or
+ * zone cut, limit=&lt;rows&gt; and cursor=&lt;zone&gt; as handed out by the
+ * previous page. Pages hold whole TLDs in canonical order, so a cursor stays
+ * valid while servers are re-ranked.
+ *
+ * The ETag is the version of the store: as long as no server was probed or
+ * removed a client sending If-None-Match gets a 304 without the store being
+ * read. gzip is used when the client accepts it.
  *
  * @author mieslingert
  */
-@SuppressWarnings("serial")
 public class ServletStatistics extends HttpServlet {
 
+    private static final int DEFAULT_LIMIT = 1000;
+    private static final int MAX_LIMIT = 10000;
+
+    private interface Row {
+
+        void write(Name tld, InetAddress ip, long score, LatencyStats st) throws IOException;
+    }
+
+    /**
+     * TLDs of the latency index in canonical order as of a store version.
+     */
+    private static final class SortedTlds {
+
+        private final long version;
+        private final Name[] tlds;
+
+        private SortedTlds(long version, Name[] tlds) {
+            this.version = version;
+            this.tlds = tlds;
+        }
+    }
+
+    private static volatile SortedTlds sortedTlds;
+
     /**
      * Processes requests for both HTTP <code>GET</code> and <code>POST</code>
      * methods.
@@ -54,50 +99,184 @@ public class ServletStatistics extends HttpServlet {
     protected void processRequest(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
 
-        PrintWriter out = response.getWriter();
-        Connection c = Main.getDbConn();
+        LatencyStore ls = Main.getLatencyStore();
+        boolean json = "json".equals(request.getParameter("format"));
+        String acceptEncoding = request.getHeader("Accept-Encoding");
+        boolean gzip = acceptEncoding != null && acceptEncoding.contains("gzip");
+
+        // read before the page is built: a probe during the build makes the
+        // next request build it again
+        long version = ls == null ? 0 : ls.getVersion();
+        String etag = "\"" + version + (gzip ? "-gzip" : "") + "\"";
+        response.setHeader("Vary", "Accept-Encoding");
+        response.setHeader("ETag", etag);
+        if (matches(request.getHeader("If-None-Match"), etag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
 
+        Name tld;
+        Name cursor;
+        int limit;
         try {
-            long startTs = System.currentTimeMillis();
-
-            response.setContentType("text/html;charset=UTF-8");
-
-            out.println("<html>");
-            out.println("<head>");
-            out.println("<title>Statistics Servlet");
-            out.println("</title>");
-            out.println("<body>");
-            out.println("<h1>Queues</h1>");
-            out.println("<table>");
-            out.println("<tr><td>queueDelegation</td><td>" + Main.getQDSize() + "</td></tr>");
-            out.println("<tr><td>queueALookup</td><td>" + Main.getQASize() + "</td></tr>");
-            out.println("<tr><td>queueAAAALookup</td><td>" + Main.getQAAAASize() + "</td></tr>");
-            out.println("<tr><td>queueDNSCheck</td><td>" + Main.getQDNSSize() + "</td></tr>");
-            out.println("</table>");
-            out.println("<h1>Cache content</h1>");
-            out.println("<table>");
-            PreparedStatement st = c.prepareStatement("select tld, ip, latency from serverLatency order by tld, latency");
-            ResultSet rs = st.executeQuery();
-            while (rs.next()) {
-                out.format("<tr><td>%s</td><td>%s</td><td>%d</td></tr>\n", rs.getString(1), rs.getString(2), rs.getInt(3));
+            tld = zoneParameter(request, "tld");
+            cursor = zoneParameter(request, "cursor");
+            String strLimit = request.getParameter("limit");
+            limit = strLimit == null ? DEFAULT_LIMIT : Math.max(1, Math.min(MAX_LIMIT, Integer.parseInt(strLimit)));
+        } catch (TextParseException | NumberFormatException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+
+        response.setContentType(json ? "application/json" : "text/html;charset=UTF-8");
+        response.setCharacterEncoding("UTF-8");
+        OutputStream os = response.getOutputStream();
+        if (gzip) {
+            response.setHeader("Content-Encoding", "gzip");
+            os = new GZIPOutputStream(os, 8192);
+        }
+        try (Writer w = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8), 8192)) {
+            if (json) {
+                writeJson(w, ls, version, tld, cursor, limit);
+            } else {
+                writeHtml(new PrintWriter(w), ls, version, tld, cursor, limit);
+            }
+        }
+    }
+
+    private static Name zoneParameter(HttpServletRequest request, String name) throws TextParseException {
+        String value = request.getParameter(name);
+        return value == null || value.isEmpty() ? null : Name.fromString(value, Name.root);
+    }
+
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.equals("*") || tag.equals(etag) || tag.equals("W/" + etag)) {
+                return true;
             }
-            rs.close();
-            st.close();
-            out.println("</table>");
-            out.println("<hr>");
-            out.println("Session und Connection Information:<br>");
-            out.println("RemoteAddress: " + request.getRemoteAddr());
-            out.println("<hr>");
-            out.println("Generated at: " + new Date().toString() + "<br>");
-            out.println("Total generation time: " + (System.currentTimeMillis() - startTs) + "ms<br>");
-            out.println("</body>");
-            out.println("</html>");
-        } catch (Exception e) {
-            out.println(e.toString());
-            e.printStackTrace();
-        } finally {
-            out.close();
         }
+        return false;
+    }
+
+    /**
+     * The TLDs are sorted once per store version, not for every page.
+     */
+    private static Name[] sortedTlds(LatencyIndex index, long version) {
+        SortedTlds sorted = sortedTlds;
+        if (sorted == null || sorted.version != version) {
+            Name[] tlds = index.getTlds().toArray(new Name[0]);
+            Arrays.sort(tlds);
+            sorted = new SortedTlds(version, tlds);
+            sortedTlds = sorted;
+        }
+        return sorted.tlds;
+    }
+
+    /**
+     * Hands the servers of whole TLDs, starting at cursor, to row until at
+     * least limit rows were written.
+     *
+     * @param tld only this TLD, or all if null
+     * @return the first TLD of the next page, null if this is the last one
+     */
+    private static Name page(LatencyStore ls, long version, Name tld, Name cursor, int limit, Row row)
+            throws IOException {
+        if (ls == null) {
+            return null;
+        }
+        LatencyIndex index = ls.getIndex();
+        Name[] tlds;
+        if (tld == null) {
+            tlds = sortedTlds(index, version);
+        } else {
+            tlds = index.get(tld) != null ? new Name[]{tld} : new Name[0];
+        }
+        int from = 0;
+        if (cursor != null) {
+            from = Arrays.binarySearch(tlds, cursor);
+            if (from < 0) {
+                from = -from - 1;
+            }
+        }
+        int rows = 0;
+        for (int j = from; j < tlds.length; j++) {
+            Name t = tlds[j];
+            if (rows >= limit) {
+                return t;
+            }
+            LatencyIndex.Ranking servers = index.get(t);
+            if (servers == null) {
+                continue;
+            }
+            for (int i = 0; i < servers.size(); i++) {
+                LatencyStats st = ls.getStats(t, servers.getAddress(i));
+                if (st == null) {
+                    continue;
+                }
+                row.write(t, servers.getAddress(i), servers.getScore(i), st);
+                rows++;
+            }
+        }
+        return null;
+    }
+
+    private static void writeJson(Writer w, LatencyStore ls, long version, Name tld, Name cursor, int limit)
+            throws IOException {
+        JsonWriter out = new JsonWriter(w);
+        out.beginObject();
+        out.name("version").value(version);
+        out.name("servers").beginArray();
+        Name next = page(ls, version, tld, cursor, limit, (t, ip, score, st) -> {
+            out.beginObject();
+            out.name("tld").value(t.toString(true));
+            out.name("ip").value(ip.getHostAddress());
+            out.name("score").value(score / 1000);
+            out.name("srtt").value(st.getSrtt() / 1000);
+            out.name("rttvar").value(st.getRttvar() / 1000);
+            out.name("p50").value(st.getPercentile(0.5) / 1000);
+            out.name("p95").value(st.getPercentile(0.95) / 1000);
+            out.name("loss").value(st.getLossRatio());
+            out.name("samples").value(st.getNumSamples());
+            out.endObject();
+        });
+        out.endArray();
+        if (next != null) {
+            out.name("next").value(next.toString(true));
+        }
+        out.endObject();
+        out.flush();
+    }
+
+    private static void writeHtml(PrintWriter out, LatencyStore ls, long version, Name tld, Name cursor, int limit)
+            throws IOException {
+        out.println("<html>");
+        out.println("<head>");
+        out.println("<title>Statistics Servlet");
+        out.println("</title>");
+        out.println("<body>");
+        out.println("<h1>Cache content</h1>");
+        out.println("<table>");
+        out.println("<tr><th>tld</th><th>ip</th><th>score us</th><th>srtt us</th><th>rttvar us</th><th>p50 us</th><th>p95 us</th><th>loss</th><th>samples</th></tr>");
+        Name next = page(ls, version, tld, cursor, limit, (t, ip, score, st) -> {
+            out.format(Locale.ROOT, "<tr><td>%s</td><td>%s</td><td>%d</td><td>%d</td><td>%d</td><td>%d</td><td>%d</td><td>%.2f</td><td>%d</td></tr>\n",
+                    t.toString(true), ip.getHostAddress(), score / 1000,
+                    st.getSrtt() / 1000, st.getRttvar() / 1000,
+                    st.getPercentile(0.5) / 1000, st.getPercentile(0.95) / 1000,
+                    st.getLossRatio(), st.getNumSamples());
+        });
+        out.println("</table>");
+        if (next != null) {
+            out.format(Locale.ROOT, "<a href=\"?cursor=%s&limit=%d%s\">next</a><br>\n",
+                    URLEncoder.encode(next.toString(true), StandardCharsets.UTF_8), limit,
+                    tld == null ? "" : "&tld=" + URLEncoder.encode(tld.toString(true), StandardCharsets.UTF_8));
+        }
+        out.println("</body>");
+        out.println("</html>");
+        out.flush();
     }
 
 // <editor-fold defaultstate="collapsed" desc="HttpServlet methods. Click on the + sign on the left to edit the code.">
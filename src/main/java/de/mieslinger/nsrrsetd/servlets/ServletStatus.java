@@ -24,11 +24,13 @@
 package de.mieslinger.nsrrsetd.servlets;
 
 import de.mieslinger.nsrrsetd.Main;
+import de.mieslinger.nsrrsetd.resolver.DelegationLookup;
+import de.mieslinger.nsrrsetd.resolver.HostAddressCache;
+import de.mieslinger.nsrrsetd.server.DnsServer;
+import de.mieslinger.nsrrsetd.store.LatencyStore;
+import de.mieslinger.nsrrsetd.store.ResponseCache;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.util.Date;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -54,7 +56,6 @@ public class ServletStatus extends HttpServlet {
             throws ServletException, IOException {
 
         PrintWriter out = response.getWriter();
-        Connection c = Main.getDbConn();
         try {
             long startTs = System.currentTimeMillis();
 
@@ -70,20 +71,42 @@ public class ServletStatus extends HttpServlet {
             out.println("queueALookup: " + Main.getQASize());
             out.println("queueAAAALookup: " + Main.getQAAAASize());
             out.println("queueDNSCheck: " + Main.getQDNSSize());
-            PreparedStatement st = c.prepareStatement("select count(*) from serverLatency");
-            ResultSet rs = st.executeQuery();
-            while (rs.next()) {
-                out.format("%s: %d\n", "Cache size", rs.getInt(1));
+            HostAddressCache hc = Main.getHostCache();
+            out.println("hostCache size: " + hc.size());
+            out.println("hostCache resolver queries: " + hc.getQueries());
+            out.println("hostCache hits: " + hc.getHits());
+            out.println("hostCache joined: " + hc.getJoined());
+            DelegationLookup dl = Main.getDelegationLookup();
+            out.println("delegationLookup queries: " + dl.getQueries());
+            out.println("delegationLookup coalesced: " + dl.getCoalesced());
+            out.println("delegationLookup running: " + dl.getRunning());
+            out.println("zoneCuts: " + Main.getZoneCuts().size());
+            out.println("zoneCuts learned: " + Main.getZoneCuts().learnedSize());
+            DnsServer ds = Main.getDnsServer();
+            if (ds != null) {
+                out.println("dnsServer udp queries: " + ds.getUdpQueries());
+                out.println("dnsServer tcp queries: " + ds.getTcpQueries());
+                out.println("dnsServer refused: " + ds.getRefused());
+                out.println("dnsServer truncated: " + ds.getTruncated());
             }
-            rs.close();
-            st.close();
-            st = c.prepareStatement("select min(lastUpdated) from serverLatency");
-            rs = st.executeQuery();
-            while (rs.next()) {
-                out.format("%s: %d\n", "Oldest Cache Entry", rs.getLong(1));
+            ResponseCache rc = Main.getResponseCache();
+            out.println("responseCache size: " + rc.size());
+            out.println("responseCache hits: " + rc.getHits());
+            out.println("responseCache negative hits: " + rc.getNegativeHits());
+            out.println("responseCache misses: " + rc.getMisses());
+            out.println("responseCache evictions: " + rc.getEvictions());
+            LatencyStore ls = Main.getLatencyStore();
+            if (ls != null) {
+                out.println("latencyStore queue depth: " + ls.getQueueDepth());
+                out.println("latencyStore flushes: " + ls.getNumFlushes());
+                out.println("latencyStore rows written: " + ls.getNumRowsWritten());
+                out.format("latencyStore flush time last/avg/max: %d/%d/%dus\n",
+                        ls.getLastFlushMicros(), ls.getAvgFlushMicros(), ls.getMaxFlushMicros());
+                out.format("%s: %d\n", "Cache size", ls.size());
+                out.format("%s: %d\n", "Oldest Cache Entry", ls.getOldestUpdate());
+                out.println("Cache expired: " + ls.getNumExpired());
+                out.println("Cache evicted: " + ls.getNumEvicted());
             }
-            rs.close();
-            st.close();
             out.println("RemoteAddress: " + request.getRemoteAddr());
             out.println("Generated at: " + new Date().toString());
             out.println("Total generation time: " + (System.currentTimeMillis() - startTs) + "ms");
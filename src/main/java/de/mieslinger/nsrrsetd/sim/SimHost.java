@@ -0,0 +1,94 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 mieslingert.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.mieslinger.nsrrsetd.sim;
+
+import java.net.InetAddress;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import org.xbill.DNS.Message;
+
+/**
+ * One address of the simulated world with its answer function and fault
+ * profile. The profile can be changed while the world runs, e.g. to let a
+ * server get slow in the middle of a cycle.
+ *
+ * @author mieslingert
+ */
+public class SimHost {
+
+    private final InetAddress address;
+    private final Function<Message, Message> handler;
+    private volatile SimProfile profile;
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder late = new LongAdder();
+
+    SimHost(InetAddress address, SimProfile profile, Function<Message, Message> handler) {
+        this.address = address;
+        this.profile = profile;
+        this.handler = handler;
+    }
+
+    public InetAddress getAddress() {
+        return address;
+    }
+
+    public SimProfile getProfile() {
+        return profile;
+    }
+
+    public void setProfile(SimProfile profile) {
+        this.profile = profile;
+    }
+
+    public long getQueries() {
+        return queries.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public long getLate() {
+        return late.sum();
+    }
+
+    Function<Message, Message> getHandler() {
+        return handler;
+    }
+
+    void counted(long delayMicros) {
+        queries.increment();
+        if (delayMicros < 0) {
+            dropped.increment();
+        } else if (delayMicros >= SimProfile.LATE_MILLIS * 1000) {
+            late.increment();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return address.getHostAddress() + " (" + profile + ")";
+    }
+}
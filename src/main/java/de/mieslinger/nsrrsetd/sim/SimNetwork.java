@@ -0,0 +1,248 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 mieslingert.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.mieslinger.nsrrsetd.sim;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xbill.DNS.Message;
+
+/**
+ * Sockets of the simulated world. Every host gets a UDP socket on its own
+ * loopback address, all on the same port, so clients see the source
+ * address they sent to. One selector thread reads all of them and asks
+ * the host for the answer; delayed answers are sent from a timer thread.
+ *
+ * TCP is only served for zone transfers, blocking, one thread per
+ * connection, without faults.
+ *
+ * @author mieslingert
+ */
+class SimNetwork implements Closeable {
+
+    private final Logger logger = LoggerFactory.getLogger(SimNetwork.class);
+    private final Selector selector;
+    private final ScheduledExecutorService delays;
+    private final List<Closeable> channels = new ArrayList<>();
+    // only used by the selector thread
+    private final Random random;
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocate(65535);
+    private Thread ioThread;
+    private volatile boolean keepOnRunning = true;
+    private int port;
+
+    /**
+     * @param port shared by all hosts, 0 to take the ephemeral port the
+     * first host gets
+     */
+    SimNetwork(int port, long seed) throws IOException {
+        this.port = port;
+        this.random = new Random(seed);
+        this.selector = Selector.open();
+        this.delays = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "SimNetwork-delay");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    /**
+     * Binds the UDP socket of host, before start().
+     */
+    void udp(SimHost host) throws IOException {
+        DatagramChannel ch = DatagramChannel.open();
+        channels.add(ch);
+        ch.configureBlocking(false);
+        ch.setOption(StandardSocketOptions.SO_RCVBUF, 1 << 20);
+        ch.bind(new InetSocketAddress(host.getAddress(), port));
+        port = ((InetSocketAddress) ch.getLocalAddress()).getPort();
+        ch.register(selector, SelectionKey.OP_READ, host);
+    }
+
+    /**
+     * Serves zone transfers for host over TCP.
+     *
+     * @param transfer the messages answering a query, in order
+     */
+    void tcp(SimHost host, Function<Message, List<Message>> transfer) throws IOException {
+        ServerSocketChannel ch = ServerSocketChannel.open();
+        channels.add(ch);
+        ch.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        ch.bind(new InetSocketAddress(host.getAddress(), port));
+        port = ((InetSocketAddress) ch.getLocalAddress()).getPort();
+        Thread t = new Thread(() -> accept(ch, transfer), "SimNetwork-tcp-" + host.getAddress().getHostAddress());
+        t.setDaemon(true);
+        t.start();
+    }
+
+    void start() {
+        ioThread = new Thread(this::ioLoop, "SimNetwork-io");
+        ioThread.setDaemon(true);
+        ioThread.start();
+    }
+
+    private void ioLoop() {
+        while (keepOnRunning) {
+            try {
+                selector.select(1000);
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (key.isValid() && key.isReadable()) {
+                        receive((DatagramChannel) key.channel(), (SimHost) key.attachment());
+                    }
+                }
+            } catch (IOException e) {
+                logger.warn("simulated network loop: ", e);
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            logger.debug("closing simulated network: {}", e.toString());
+        }
+    }
+
+    private void receive(DatagramChannel ch, SimHost host) throws IOException {
+        while (true) {
+            receiveBuffer.clear();
+            SocketAddress client = ch.receive(receiveBuffer);
+            if (client == null) {
+                return;
+            }
+            receiveBuffer.flip();
+            long delay = host.getProfile().delayMicros(random);
+            host.counted(delay);
+            if (delay < 0) {
+                continue;
+            }
+            byte[] answer;
+            try {
+                Message response = host.getHandler().apply(new Message(receiveBuffer));
+                if (response == null) {
+                    continue;
+                }
+                answer = response.toWire(65535);
+            } catch (IOException | RuntimeException e) {
+                logger.debug("{} could not answer {}: {}", host.getAddress().getHostAddress(), client, e.toString());
+                continue;
+            }
+            if (delay == 0) {
+                send(ch, answer, client);
+            } else {
+                delays.schedule(() -> send(ch, answer, client), delay, TimeUnit.MICROSECONDS);
+            }
+        }
+    }
+
+    private void send(DatagramChannel ch, byte[] answer, SocketAddress client) {
+        try {
+            ch.send(ByteBuffer.wrap(answer), client);
+        } catch (IOException e) {
+            logger.debug("answer to {} not sent: {}", client, e.toString());
+        }
+    }
+
+    private void accept(ServerSocketChannel ch, Function<Message, List<Message>> transfer) {
+        while (keepOnRunning) {
+            Socket s;
+            try {
+                s = ch.accept().socket();
+            } catch (IOException e) {
+                return;
+            }
+            Thread t = new Thread(() -> serve(s, transfer), "SimNetwork-xfr");
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    private void serve(Socket s, Function<Message, List<Message>> transfer) {
+        try (s) {
+            DataInputStream in = new DataInputStream(s.getInputStream());
+            DataOutputStream out = new DataOutputStream(s.getOutputStream());
+            while (true) {
+                byte[] query = new byte[in.readUnsignedShort()];
+                in.readFully(query);
+                for (Message m : transfer.apply(new Message(query))) {
+                    byte[] wire = m.toWire(65535);
+                    out.writeShort(wire.length);
+                    out.write(wire);
+                }
+                out.flush();
+            }
+        } catch (EOFException e) {
+            // client is done
+        } catch (IOException | RuntimeException e) {
+            logger.debug("zone transfer to {} failed: {}", s.getRemoteSocketAddress(), e.toString());
+        }
+    }
+
+    @Override
+    public void close() {
+        keepOnRunning = false;
+        selector.wakeup();
+        if (ioThread == null) {
+            try {
+                selector.close();
+            } catch (IOException e) {
+                logger.debug("closing simulated network: {}", e.toString());
+            }
+        }
+        delays.shutdownNow();
+        for (Closeable c : channels) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                logger.debug("closing simulated network: {}", e.toString());
+            }
+        }
+    }
+}
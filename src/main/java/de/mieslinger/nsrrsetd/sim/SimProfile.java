@@ -0,0 +1,108 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 mieslingert.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.mieslinger.nsrrsetd.sim;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * How a simulated server treats a query: answered after latency plus a
+ * uniform jitter, dropped with probability loss, or answered so late
+ * (LATE_MILLIS) that the client gave up already.
+ *
+ * @author mieslingert
+ */
+public class SimProfile {
+
+    public static final long LATE_MILLIS = 5000;
+    public static final SimProfile NONE = new SimProfile(0, 0, 0, 0);
+    public static final SimProfile UNREACHABLE = new SimProfile(0, 0, 1, 0);
+
+    private final long latencyMicros;
+    private final long jitterMicros;
+    private final double loss;
+    private final double late;
+
+    public SimProfile(long latencyMicros, long jitterMicros, double loss, double late) {
+        if (latencyMicros < 0 || jitterMicros < 0) {
+            throw new IllegalArgumentException("negative latency");
+        }
+        if (loss < 0 || loss > 1 || late < 0 || late > 1) {
+            throw new IllegalArgumentException("loss and late must be between 0 and 1");
+        }
+        this.latencyMicros = latencyMicros;
+        this.jitterMicros = jitterMicros;
+        this.loss = loss;
+        this.late = late;
+    }
+
+    /**
+     * @return microseconds until the answer is sent, -1 to drop the query
+     */
+    long delayMicros(Random random) {
+        if (loss > 0 && random.nextDouble() < loss) {
+            return -1;
+        }
+        if (late > 0 && random.nextDouble() < late) {
+            return LATE_MILLIS * 1000;
+        }
+        return jitterMicros == 0 ? latencyMicros : latencyMicros + (long) (random.nextDouble() * jitterMicros);
+    }
+
+    /**
+     * Mean delay of an answered query that was not late, what a perfect
+     * ranking orders servers by.
+     */
+    public long getExpectedMicros() {
+        return latencyMicros + jitterMicros / 2;
+    }
+
+    public long getLatencyMicros() {
+        return latencyMicros;
+    }
+
+    public long getJitterMicros() {
+        return jitterMicros;
+    }
+
+    public double getLoss() {
+        return loss;
+    }
+
+    public double getLate() {
+        return late;
+    }
+
+    public boolean isUnreachable() {
+        return loss >= 1;
+    }
+
+    @Override
+    public String toString() {
+        if (isUnreachable()) {
+            return "unreachable";
+        }
+        return String.format(Locale.ROOT, "%d+%dus loss %.3f late %.3f", latencyMicros, jitterMicros, loss, late);
+    }
+}
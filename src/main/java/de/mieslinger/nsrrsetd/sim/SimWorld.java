@@ -0,0 +1,556 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 mieslingert.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.mieslinger.nsrrsetd.sim;
+
+import de.mieslinger.nsrrsetd.store.LatencyIndex;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.NSRecord;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.NameTooLongException;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.SOARecord;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.TextParseException;
+import org.xbill.DNS.Type;
+
+/**
+ * A DNS world on loopback for warm-up runs without the internet: a root
+ * server handing out the root zone by AXFR, a resolver stand-in and the
+ * authoritative servers of the TLDs, each with its own fault profile.
+ *
+ * The root zone has tlds delegations tld1. to tldN., each served by
+ * nameservers of the hosts ns1.sim. to nsM.sim., picked at random. Hosts
+ * serve many TLDs like real operators do. Every host has an address of
+ * its own below 127.54.0.0/16, root and resolver are 127.53.0.1 and
+ * 127.53.0.2, all on one port. That needs the whole of 127.0.0.0/8 on
+ * the loopback interface, as on Linux.
+ *
+ * The resolver answers from the tables of the world right away: NS of the
+ * TLDs, A of the nameservers, no AAAA. TLD servers answer NS for their
+ * zone and refer everything below it to ns1/ns2 of the second level name.
+ *
+ * Everything random is drawn from the seed, so two runs with the same
+ * settings see the same world.
+ *
+ * @author mieslingert
+ */
+public class SimWorld implements Closeable {
+
+    private static final long TTL = 86400;
+    private static final int RECORDS_PER_MESSAGE = 500;
+    private static final Name HOSTS = Name.fromConstantString("sim.");
+
+    private final SimNetwork network;
+    private final long serial;
+    private SimHost root;
+    private SimHost resolver;
+    private final List<SimHost> hosts = new ArrayList<>();
+    private final Map<InetAddress, SimHost> byAddress = new HashMap<>();
+    private final Map<Name, SimHost> byName = new HashMap<>();
+    private final Map<SimHost, Name> names = new HashMap<>();
+    private final Map<Name, List<SimHost>> servers = new LinkedHashMap<>();
+    private final SOARecord soa;
+
+    private SimWorld(Builder b) throws IOException {
+        Random random = new Random(b.seed);
+        this.serial = b.serial;
+        this.network = new SimNetwork(b.port, b.seed);
+        this.soa = new SOARecord(Name.root, DClass.IN, TTL, name("root", HOSTS), name("hostmaster", HOSTS),
+                serial, 1800, 900, 604800, 86400);
+        try {
+            build(b, random);
+        } catch (IOException | RuntimeException e) {
+            network.close();
+            throw e;
+        }
+        network.start();
+    }
+
+    private void build(Builder b, Random random) throws IOException {
+        root = new SimHost(address(127, 53, 0, 1), SimProfile.NONE, this::answerRoot);
+        resolver = new SimHost(address(127, 53, 0, 2), SimProfile.NONE, this::answerResolver);
+        network.udp(root);
+        network.tcp(root, this::transfer);
+        network.udp(resolver);
+
+        double minLog = Math.log(b.minLatencyMillis * 1000.0);
+        double maxLog = Math.log(b.maxLatencyMillis * 1000.0);
+        for (int i = 0; i < b.hosts; i++) {
+            SimProfile profile;
+            if (random.nextDouble() < b.unreachable) {
+                profile = SimProfile.UNREACHABLE;
+            } else {
+                // log-uniform: many close servers, a few far away
+                long latency = (long) Math.exp(minLog + random.nextDouble() * (maxLog - minLog));
+                profile = new SimProfile(latency, latency / 10, b.loss, b.late);
+            }
+            int h = i;
+            SimHost host = new SimHost(address(127, 54, i / 254, i % 254 + 1), profile, q -> answerTld(h, q));
+            Name name = name("ns" + (i + 1), HOSTS);
+            hosts.add(host);
+            byAddress.put(host.getAddress(), host);
+            byName.put(name, host);
+            names.put(host, name);
+            network.udp(host);
+        }
+
+        List<SimHost> pool = new ArrayList<>(hosts);
+        for (int i = 1; i <= b.tlds; i++) {
+            Collections.shuffle(pool, random);
+            servers.put(name("tld" + i, Name.root), Collections.unmodifiableList(new ArrayList<>(pool.subList(0, b.nameservers))));
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public SimHost getRoot() {
+        return root;
+    }
+
+    public SimHost getResolver() {
+        return resolver;
+    }
+
+    /**
+     * @return the TLD servers
+     */
+    public List<SimHost> getHosts() {
+        return Collections.unmodifiableList(hosts);
+    }
+
+    public int getPort() {
+        return network.getPort();
+    }
+
+    public long getSerial() {
+        return serial;
+    }
+
+    public Set<Name> getTlds() {
+        return Collections.unmodifiableSet(servers.keySet());
+    }
+
+    public List<SimHost> getServers(Name tld) {
+        return servers.getOrDefault(tld, Collections.emptyList());
+    }
+
+    public SimHost getHost(InetAddress address) {
+        return byAddress.get(address);
+    }
+
+    @Override
+    public void close() {
+        network.close();
+    }
+
+    /**
+     * Compares the rankings of index with the fault profiles: a server is
+     * as good as its expected latency, unreachable ones are worst. Loss
+     * and late answers are left out, ranking them down is the job of the
+     * score.
+     */
+    public Accuracy rankingAccuracy(LatencyIndex index) {
+        Accuracy a = new Accuracy();
+        for (Map.Entry<Name, List<SimHost>> e : servers.entrySet()) {
+            LatencyIndex.Ranking ranking = index.get(e.getKey());
+            if (ranking == null || ranking.size() == 0) {
+                continue;
+            }
+            a.ranked++;
+            long trueBest = Long.MAX_VALUE;
+            for (SimHost host : e.getValue()) {
+                trueBest = Math.min(trueBest, cost(host));
+            }
+            long first = cost(byAddress.get(ranking.best()));
+            if (first == trueBest) {
+                a.bestRight++;
+            } else if (first == Long.MAX_VALUE) {
+                a.unreachableFirst++;
+            } else {
+                a.regretMicros += first - trueBest;
+            }
+            for (int i = 0; i < ranking.size(); i++) {
+                for (int j = i + 1; j < ranking.size(); j++) {
+                    long ci = cost(byAddress.get(ranking.getAddress(i)));
+                    long cj = cost(byAddress.get(ranking.getAddress(j)));
+                    if (ci != cj) {
+                        a.pairs++;
+                        if (ci < cj) {
+                            a.pairsInOrder++;
+                        }
+                    }
+                }
+            }
+        }
+        return a;
+    }
+
+    private static long cost(SimHost host) {
+        if (host == null || host.getProfile().isUnreachable()) {
+            return Long.MAX_VALUE;
+        }
+        return host.getProfile().getExpectedMicros();
+    }
+
+    /**
+     * How well the latency store ranks the servers of the world.
+     */
+    public static class Accuracy {
+
+        private int ranked;
+        private int bestRight;
+        private int unreachableFirst;
+        private long regretMicros;
+        private long pairs;
+        private long pairsInOrder;
+
+        /**
+         * @return TLDs with a ranking
+         */
+        public int getRanked() {
+            return ranked;
+        }
+
+        /**
+         * @return TLDs whose first server is the best one
+         */
+        public int getBestRight() {
+            return bestRight;
+        }
+
+        /**
+         * @return TLDs ranking an unreachable server first although a
+         * reachable one exists
+         */
+        public int getUnreachableFirst() {
+            return unreachableFirst;
+        }
+
+        /**
+         * @return expected latency added by reachable first servers that
+         * are not the best, summed over all TLDs
+         */
+        public long getRegretMicros() {
+            return regretMicros;
+        }
+
+        /**
+         * @return pairs of ranked servers of a TLD with different cost
+         */
+        public long getPairs() {
+            return pairs;
+        }
+
+        /**
+         * @return of those, pairs ranked in the right order
+         */
+        public long getPairsInOrder() {
+            return pairsInOrder;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%d TLDs ranked, best server first for %.1f%%, unreachable first for %d, "
+                    + "mean regret %dus, %.1f%% of server pairs in order",
+                    ranked,
+                    ranked == 0 ? 0.0 : bestRight * 100.0 / ranked,
+                    unreachableFirst,
+                    ranked == 0 ? 0 : regretMicros / ranked,
+                    pairs == 0 ? 0.0 : pairsInOrder * 100.0 / pairs);
+        }
+    }
+
+    private Message answerRoot(Message query) {
+        Record q = query.getQuestion();
+        Name qname = q.getName();
+        if (qname.equals(Name.root)) {
+            Message r = response(query, Rcode.NOERROR, true);
+            if (q.getType() == Type.SOA) {
+                r.addRecord(soa, Section.ANSWER);
+            }
+            return r;
+        }
+        Name tld = tldOf(qname);
+        List<SimHost> tldServers = servers.get(tld);
+        if (tldServers == null) {
+            Message r = response(query, Rcode.NXDOMAIN, true);
+            r.addRecord(soa, Section.AUTHORITY);
+            return r;
+        }
+        Message r = response(query, Rcode.NOERROR, false);
+        for (SimHost host : tldServers) {
+            r.addRecord(new NSRecord(tld, DClass.IN, TTL, names.get(host)), Section.AUTHORITY);
+            r.addRecord(new ARecord(names.get(host), DClass.IN, TTL, host.getAddress()), Section.ADDITIONAL);
+        }
+        return r;
+    }
+
+    /**
+     * AXFR, IXFR is answered with the full zone as well.
+     */
+    private List<Message> transfer(Message query) {
+        List<Record> records = new ArrayList<>();
+        records.add(soa);
+        for (Map.Entry<Name, List<SimHost>> e : servers.entrySet()) {
+            for (SimHost host : e.getValue()) {
+                records.add(new NSRecord(e.getKey(), DClass.IN, TTL, names.get(host)));
+            }
+        }
+        for (SimHost host : hosts) {
+            records.add(new ARecord(names.get(host), DClass.IN, TTL, host.getAddress()));
+        }
+        records.add(soa);
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < records.size(); i += RECORDS_PER_MESSAGE) {
+            Message m = response(query, Rcode.NOERROR, true);
+            for (Record r : records.subList(i, Math.min(records.size(), i + RECORDS_PER_MESSAGE))) {
+                m.addRecord(r, Section.ANSWER);
+            }
+            messages.add(m);
+        }
+        return messages;
+    }
+
+    private Message answerResolver(Message query) {
+        Record q = query.getQuestion();
+        Name qname = q.getName();
+        SimHost host = byName.get(qname);
+        if (host != null) {
+            Message r = response(query, Rcode.NOERROR, false);
+            if (q.getType() == Type.A) {
+                r.addRecord(new ARecord(qname, DClass.IN, TTL, host.getAddress()), Section.ANSWER);
+            }
+            return r;
+        }
+        Name tld = tldOf(qname);
+        List<SimHost> tldServers = servers.get(tld);
+        if (tldServers == null) {
+            return qname.equals(Name.root) ? response(query, Rcode.NOERROR, false) : response(query, Rcode.NXDOMAIN, false);
+        }
+        Message r = response(query, Rcode.NOERROR, false);
+        if (q.getType() == Type.NS && qname.equals(tld)) {
+            for (SimHost s : tldServers) {
+                r.addRecord(new NSRecord(tld, DClass.IN, TTL, names.get(s)), Section.ANSWER);
+            }
+        } else if (q.getType() == Type.NS && qname.labels() == tld.labels() + 1) {
+            addSecondLevel(r, qname, Section.ANSWER);
+        }
+        return r;
+    }
+
+    private Message answerTld(int h, Message query) {
+        Record q = query.getQuestion();
+        Name qname = q.getName();
+        Name tld = tldOf(qname);
+        List<SimHost> tldServers = servers.get(tld);
+        if (tldServers == null || !tldServers.contains(hosts.get(h))) {
+            return response(query, Rcode.REFUSED, false);
+        }
+        if (qname.equals(tld)) {
+            Message r = response(query, Rcode.NOERROR, true);
+            if (q.getType() == Type.NS) {
+                for (SimHost s : tldServers) {
+                    r.addRecord(new NSRecord(tld, DClass.IN, TTL, names.get(s)), Section.ANSWER);
+                }
+            }
+            return r;
+        }
+        Message r = response(query, Rcode.NOERROR, false);
+        addSecondLevel(r, new Name(qname, qname.labels() - tld.labels() - 1), Section.AUTHORITY);
+        return r;
+    }
+
+    private static void addSecondLevel(Message r, Name zone, int section) {
+        for (int i = 1; i <= 2; i++) {
+            r.addRecord(new NSRecord(zone, DClass.IN, TTL, name("ns" + i, zone)), section);
+        }
+    }
+
+    /**
+     * @return the last label of name, the root for the root
+     */
+    private static Name tldOf(Name name) {
+        return name.labels() <= 2 ? name : new Name(name, name.labels() - 2);
+    }
+
+    private static Message response(Message query, int rcode, boolean authoritative) {
+        Message r = new Message(query.getHeader().getID());
+        r.getHeader().setFlag(Flags.QR);
+        if (authoritative) {
+            r.getHeader().setFlag(Flags.AA);
+        }
+        if (query.getHeader().getFlag(Flags.RD)) {
+            r.getHeader().setFlag(Flags.RD);
+            r.getHeader().setFlag(Flags.RA);
+        }
+        r.getHeader().setRcode(rcode);
+        r.addRecord(query.getQuestion(), Section.QUESTION);
+        return r;
+    }
+
+    private static Name name(String label, Name origin) {
+        try {
+            return Name.concatenate(Name.fromString(label), origin);
+        } catch (TextParseException | NameTooLongException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    private static InetAddress address(int a, int b, int c, int d) throws UnknownHostException {
+        return InetAddress.getByAddress(new byte[]{(byte) a, (byte) b, (byte) c, (byte) d});
+    }
+
+    public static class Builder {
+
+        private int tlds = 1500;
+        private int nameservers = 4;
+        private int hosts = 300;
+        private long seed = 1;
+        private long serial = 2020010100;
+        private int port = 0;
+        private long minLatencyMillis = 5;
+        private long maxLatencyMillis = 250;
+        private double loss = 0.01;
+        private double late = 0.01;
+        private double unreachable = 0.05;
+
+        private Builder() {
+        }
+
+        public Builder tlds(int tlds) {
+            this.tlds = tlds;
+            return this;
+        }
+
+        /**
+         * @param nameservers per TLD
+         */
+        public Builder nameservers(int nameservers) {
+            this.nameservers = nameservers;
+            return this;
+        }
+
+        /**
+         * @param hosts TLD servers, at most 64770
+         */
+        public Builder hosts(int hosts) {
+            this.hosts = hosts;
+            return this;
+        }
+
+        public Builder seed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        public Builder serial(long serial) {
+            this.serial = serial;
+            return this;
+        }
+
+        /**
+         * @param port of every server, 0 for an ephemeral one
+         */
+        public Builder port(int port) {
+            this.port = port;
+            return this;
+        }
+
+        /**
+         * Latencies of the reachable hosts are spread log-uniformly over
+         * [minMillis, maxMillis], with a jitter of a tenth on top.
+         */
+        public Builder latency(long minMillis, long maxMillis) {
+            this.minLatencyMillis = minMillis;
+            this.maxLatencyMillis = maxMillis;
+            return this;
+        }
+
+        /**
+         * @param loss ratio of queries every reachable host drops
+         */
+        public Builder loss(double loss) {
+            this.loss = loss;
+            return this;
+        }
+
+        /**
+         * @param late ratio of queries every reachable host answers after
+         * SimProfile.LATE_MILLIS
+         */
+        public Builder late(double late) {
+            this.late = late;
+            return this;
+        }
+
+        /**
+         * @param unreachable ratio of hosts that never answer
+         */
+        public Builder unreachable(double unreachable) {
+            this.unreachable = unreachable;
+            return this;
+        }
+
+        /**
+         * Binds all sockets and starts answering.
+         */
+        public SimWorld start() throws IOException {
+            if (tlds < 1 || nameservers < 1 || nameservers > hosts || hosts > 254 * 255) {
+                throw new IllegalArgumentException("need 1 <= nameservers <= hosts <= 64770 and at least one tld");
+            }
+            if (minLatencyMillis < 1 || maxLatencyMillis < minLatencyMillis) {
+                throw new IllegalArgumentException("latency range " + minLatencyMillis + "-" + maxLatencyMillis + "ms");
+            }
+            if (loss < 0 || loss > 1 || late < 0 || late > 1 || unreachable < 0 || unreachable > 1) {
+                throw new IllegalArgumentException("loss, late and unreachable must be between 0 and 1");
+            }
+            return new SimWorld(this);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%d TLDs, %d servers on 127.54.0.0/16, root 127.53.0.1, resolver 127.53.0.2, port %d",
+                servers.size(), hosts.size(), getPort());
+    }
+}
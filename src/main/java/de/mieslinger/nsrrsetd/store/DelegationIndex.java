@@ -0,0 +1,252 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 mieslingert.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.mieslinger.nsrrsetd.store;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.xbill.DNS.AAAARecord;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.NSRecord;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.SOARecord;
+import org.xbill.DNS.Type;
+
+/**
+ * The parts of the root zone we care about: the NS set of every delegation
+ * and the glue addresses of nameserver hosts.
+ *
+ * Instances are immutable and can be shared between threads, a changed
+ * zone gets a new index.
+ *
+ * @author mieslingert
+ */
+public class DelegationIndex {
+
+    private final Map<Name, List<Name>> delegations;
+    private final Map<Name, List<InetAddress>> glue;
+    private final long serial;
+
+    private DelegationIndex(Map<Name, List<Name>> delegations, Map<Name, List<InetAddress>> glue, long serial) {
+        this.delegations = delegations;
+        this.glue = glue;
+        this.serial = serial;
+    }
+
+    /**
+     * Delegations in zone order.
+     */
+    public Set<Name> getDelegations() {
+        return delegations.keySet();
+    }
+
+    public List<Name> getNameservers(Name delegation) {
+        List<Name> ns = delegations.get(delegation);
+        return ns == null ? Collections.emptyList() : ns;
+    }
+
+    /**
+     * @return glue A and AAAA addresses of host, empty for hosts without
+     * glue in the root zone
+     */
+    public List<InetAddress> getGlue(Name host) {
+        List<InetAddress> addresses = glue.get(host);
+        return addresses == null ? Collections.emptyList() : addresses;
+    }
+
+    /**
+     * Nameserver hosts with glue, in zone order.
+     */
+    public Set<Name> getGlueHosts() {
+        return glue.keySet();
+    }
+
+    public boolean hasGlue(Name host) {
+        return glue.containsKey(host);
+    }
+
+    public int size() {
+        return delegations.size();
+    }
+
+    /**
+     * @return SOA serial of the zone this index was built from
+     */
+    public long getSerial() {
+        return serial;
+    }
+
+    /**
+     * Delegations that are new in newer or whose NS set or nameserver glue
+     * differs from this index.
+     */
+    public Set<Name> changedIn(DelegationIndex newer) {
+        Set<Name> changed = new LinkedHashSet<>();
+        for (Name delegation : newer.getDelegations()) {
+            List<Name> oldNs = getNameservers(delegation);
+            List<Name> newNs = newer.getNameservers(delegation);
+            if (oldNs.size() != newNs.size() || !oldNs.containsAll(newNs)) {
+                changed.add(delegation);
+                continue;
+            }
+            for (Name ns : newNs) {
+                List<InetAddress> oldGlue = getGlue(ns);
+                List<InetAddress> newGlue = newer.getGlue(ns);
+                if (oldGlue.size() != newGlue.size() || !oldGlue.containsAll(newGlue)) {
+                    changed.add(delegation);
+                    break;
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Delegations of this index that are gone in newer.
+     */
+    public Set<Name> removedIn(DelegationIndex newer) {
+        Set<Name> removed = new LinkedHashSet<>();
+        for (Name delegation : getDelegations()) {
+            if (!newer.delegations.containsKey(delegation)) {
+                removed.add(delegation);
+            }
+        }
+        return removed;
+    }
+
+    public int glueSize() {
+        return glue.size();
+    }
+
+    public static class Builder {
+
+        private final Map<Name, List<Name>> delegations = new LinkedHashMap<>();
+        private final Map<Name, List<InetAddress>> glue = new LinkedHashMap<>();
+        private long serial = -1;
+
+        public Builder() {
+        }
+
+        /**
+         * Starts from the content of base, used to apply IXFR deltas.
+         */
+        public Builder(DelegationIndex base) {
+            for (Map.Entry<Name, List<Name>> e : base.delegations.entrySet()) {
+                delegations.put(e.getKey(), new ArrayList<>(e.getValue()));
+            }
+            for (Map.Entry<Name, List<InetAddress>> e : base.glue.entrySet()) {
+                glue.put(e.getKey(), new ArrayList<>(e.getValue()));
+            }
+            serial = base.serial;
+        }
+
+        /**
+         * Adds NS, A and AAAA records below the root and takes the serial
+         * from the SOA, everything else is ignored.
+         */
+        public void add(Record r) {
+            switch (r.getType()) {
+                case Type.SOA:
+                    serial = ((SOARecord) r).getSerial();
+                    break;
+                case Type.NS:
+                    if (!r.getName().equals(Name.root)) {
+                        addTo(delegations, r.getName(), ((NSRecord) r).getTarget());
+                    }
+                    break;
+                case Type.A:
+                    addTo(glue, r.getName(), ((ARecord) r).getAddress());
+                    break;
+                case Type.AAAA:
+                    addTo(glue, r.getName(), ((AAAARecord) r).getAddress());
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        public void addNameserver(Name delegation, Name ns) {
+            addTo(delegations, delegation, ns);
+        }
+
+        public void addGlue(Name host, InetAddress address) {
+            addTo(glue, host, address);
+        }
+
+        public void setSerial(long serial) {
+            this.serial = serial;
+        }
+
+        public void remove(Record r) {
+            switch (r.getType()) {
+                case Type.NS:
+                    removeFrom(delegations, r.getName(), ((NSRecord) r).getTarget());
+                    break;
+                case Type.A:
+                    removeFrom(glue, r.getName(), ((ARecord) r).getAddress());
+                    break;
+                case Type.AAAA:
+                    removeFrom(glue, r.getName(), ((AAAARecord) r).getAddress());
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private static <T> void removeFrom(Map<Name, List<T>> map, Name name, T value) {
+            List<T> values = map.get(name);
+            if (values != null) {
+                values.remove(value);
+                if (values.isEmpty()) {
+                    map.remove(name);
+                }
+            }
+        }
+
+        private static <T> void addTo(Map<Name, List<T>> map, Name name, T value) {
+            List<T> values = map.computeIfAbsent(name, k -> new ArrayList<>(4));
+            if (!values.contains(value)) {
+                values.add(value);
+            }
+        }
+
+        public DelegationIndex build() {
+            Map<Name, List<Name>> d = new LinkedHashMap<>();
+            for (Map.Entry<Name, List<Name>> e : delegations.entrySet()) {
+                d.put(e.getKey(), Collections.unmodifiableList(new ArrayList<>(e.getValue())));
+            }
+            Map<Name, List<InetAddress>> g = new LinkedHashMap<>();
+            for (Map.Entry<Name, List<InetAddress>> e : glue.entrySet()) {
+                g.put(e.getKey(), Collections.unmodifiableList(new ArrayList<>(e.getValue())));
+            }
+            return new DelegationIndex(Collections.unmodifiableMap(d), Collections.unmodifiableMap(g), serial);
+        }
+    }
+}
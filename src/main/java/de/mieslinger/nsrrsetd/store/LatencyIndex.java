@@ -0,0 +1,157 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 mieslingert.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.mieslinger.nsrrsetd.store;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.xbill.DNS.Name;
+
+/**
+ * TLD servers ordered by score, for picking the best server of a TLD.
+ *
+ * Every TLD maps to an immutable Ranking. Updates build a new Ranking and
+ * replace the old one (copy on write), readers get a consistent sorted
+ * array without locking or allocating.
+ *
+ * @author mieslingert
+ */
+public class LatencyIndex {
+
+    private final ConcurrentHashMap<Name, Ranking> rankings = new ConcurrentHashMap<>();
+
+    /**
+     * @return servers of tld by ascending score, null if none are known
+     */
+    public Ranking get(Name tld) {
+        return rankings.get(tld);
+    }
+
+    public void update(Name tld, InetAddress address, long score) {
+        rankings.compute(tld, (k, old) -> old == null ? Ranking.EMPTY.with(address, score) : old.with(address, score));
+    }
+
+    public void remove(Name tld, InetAddress address) {
+        rankings.computeIfPresent(tld, (k, old) -> old.without(address));
+    }
+
+    public void remove(Name tld) {
+        rankings.remove(tld);
+    }
+
+    public Set<Name> getTlds() {
+        return rankings.keySet();
+    }
+
+    public int size() {
+        return rankings.size();
+    }
+
+    public static class Ranking {
+
+        private static final Ranking EMPTY = new Ranking(new InetAddress[0], new long[0]);
+
+        private final InetAddress[] addresses;
+        private final long[] scores;
+
+        private Ranking(InetAddress[] addresses, long[] scores) {
+            this.addresses = addresses;
+            this.scores = scores;
+        }
+
+        public int size() {
+            return addresses.length;
+        }
+
+        public InetAddress getAddress(int i) {
+            return addresses[i];
+        }
+
+        /**
+         * @return score in nanoseconds
+         */
+        public long getScore(int i) {
+            return scores[i];
+        }
+
+        public InetAddress best() {
+            return addresses[0];
+        }
+
+        private int indexOf(InetAddress address) {
+            for (int i = 0; i < addresses.length; i++) {
+                if (addresses[i].equals(address)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private Ranking with(InetAddress address, long score) {
+            Ranking base = this;
+            if (indexOf(address) >= 0) {
+                base = without(address);
+                if (base == null) {
+                    base = EMPTY;
+                }
+            }
+            int n = base.addresses.length;
+            // after servers with the same score, a tie keeps the old order
+            int pos = 0;
+            while (pos < n && base.scores[pos] <= score) {
+                pos++;
+            }
+            InetAddress[] a = new InetAddress[n + 1];
+            long[] s = new long[n + 1];
+            System.arraycopy(base.addresses, 0, a, 0, pos);
+            System.arraycopy(base.scores, 0, s, 0, pos);
+            a[pos] = address;
+            s[pos] = score;
+            System.arraycopy(base.addresses, pos, a, pos + 1, n - pos);
+            System.arraycopy(base.scores, pos, s, pos + 1, n - pos);
+            return new Ranking(a, s);
+        }
+
+        /**
+         * @return null if address was the last server, which removes the
+         * TLD from the index
+         */
+        private Ranking without(InetAddress address) {
+            int i = indexOf(address);
+            if (i < 0) {
+                return this;
+            }
+            int n = addresses.length;
+            if (n == 1) {
+                return null;
+            }
+            InetAddress[] a = Arrays.copyOf(addresses, n - 1);
+            long[] s = Arrays.copyOf(scores, n - 1);
+            System.arraycopy(addresses, i + 1, a, i, n - i - 1);
+            System.arraycopy(scores, i + 1, s, i, n - i - 1);
+            return new Ranking(a, s);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 mieslingert.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.mieslinger.nsrrsetd.store;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rolling latency statistics of one TLD server.
+ *
+ * Keeps the last WINDOW probe results in a ring, a lost probe is stored as
+ * -1. Smoothed RTT and RTT variance follow RFC 6298. All times are in
+ * nanoseconds.
+ *
+ * The score used for ranking servers is the expected cost of a query: the
+ * median RTT of the window for answered queries and LOSS_PENALTY for lost
+ * ones, weighted by the loss ratio. A single slow answer does not move the
+ * median, while srtt + 4 * rttvar would jump by its full difference; a
+ * server that drops queries falls behind every reliable one.
+ *
+ * @author mieslingert
+ */
+public class LatencyStats {
+
+    public static final int WINDOW = 16;
+    public static final long LOSS_PENALTY = 2_000_000_000L;
+    public static final int MIN_SAMPLES_UNREACHABLE = 4;
+
+    /**
+     * Least recently updated first, ties broken by creation order so that
+     * no two stats compare equal. Reads lastUpdated without locking the
+     * stats: only for sets whose owner serializes updates and comparisons,
+     * like LatencyStore.
+     */
+    static final Comparator<LatencyStats> BY_LAST_UPDATED = (a, b) -> {
+        int c = Long.compare(a.lastUpdated, b.lastUpdated);
+        return c != 0 ? c : Long.compare(a.id, b.id);
+    };
+
+    private static final AtomicLong ids = new AtomicLong();
+
+    private final long id = ids.incrementAndGet();
+
+    private final long[] samples = new long[WINDOW];
+    private int numSamples = 0;
+    private int next = 0;
+    private double srtt = 0;
+    private double rttvar = 0;
+    private boolean answered = false;
+    private long lastUpdated;
+    private boolean dirty = false;
+    private long generation;
+
+    public synchronized void addSample(long rtt, long now) {
+        if (!answered) {
+            srtt = rtt;
+            rttvar = rtt / 2.0;
+            answered = true;
+        } else {
+            rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rtt);
+            srtt = 0.875 * srtt + 0.125 * rtt;
+        }
+        record(rtt, now);
+    }
+
+    public synchronized void addLoss(long now) {
+        record(-1, now);
+    }
+
+    private void record(long sample, long now) {
+        samples[next] = sample;
+        next = (next + 1) % WINDOW;
+        numSamples = Math.min(numSamples + 1, WINDOW);
+        lastUpdated = now;
+    }
+
+    /**
+     * Replaces the state with one saved from getSamples(), getSrtt() and
+     * getRttvar(), used when loading a snapshot.
+     *
+     * @param saved window, oldest first, at most WINDOW of them are used
+     * @param srtt 0 if the server never answered
+     */
+    public synchronized void restore(long[] saved, long srtt, long rttvar, long lastUpdated) {
+        int from = Math.max(0, saved.length - WINDOW);
+        numSamples = saved.length - from;
+        for (int i = 0; i < numSamples; i++) {
+            samples[i] = saved[from + i];
+        }
+        next = numSamples % WINDOW;
+        this.srtt = srtt;
+        this.rttvar = rttvar;
+        answered = srtt > 0;
+        this.lastUpdated = lastUpdated;
+    }
+
+    /**
+     * @return the window, oldest first, lost probes as -1
+     */
+    public synchronized long[] getSamples() {
+        long[] window = new long[numSamples];
+        int oldest = numSamples < WINDOW ? 0 : next;
+        for (int i = 0; i < numSamples; i++) {
+            window[i] = samples[(oldest + i) % WINDOW];
+        }
+        return window;
+    }
+
+    /**
+     * @return a copy, consistent even while probes update this one
+     */
+    public synchronized LatencyStats copy() {
+        LatencyStats c = new LatencyStats();
+        c.restore(getSamples(), (long) srtt, (long) rttvar, lastUpdated);
+        return c;
+    }
+
+    /**
+     * @return true if the stats were not waiting to be written yet
+     */
+    public synchronized boolean markDirty() {
+        boolean wasClean = !dirty;
+        dirty = true;
+        return wasClean;
+    }
+
+    public synchronized void clearDirty() {
+        dirty = false;
+    }
+
+    public synchronized long getSrtt() {
+        return (long) srtt;
+    }
+
+    public synchronized long getRttvar() {
+        return (long) rttvar;
+    }
+
+    /**
+     * @return p-th percentile of the answered samples in the window, 0 if
+     * there are none
+     */
+    public synchronized long getPercentile(double p) {
+        long[] answers = new long[numSamples];
+        int n = 0;
+        for (int i = 0; i < numSamples; i++) {
+            if (samples[i] >= 0) {
+                answers[n++] = samples[i];
+            }
+        }
+        if (n == 0) {
+            return 0;
+        }
+        Arrays.sort(answers, 0, n);
+        int rank = (int) Math.ceil(p * n) - 1;
+        return answers[Math.max(0, Math.min(n - 1, rank))];
+    }
+
+    public synchronized double getLossRatio() {
+        if (numSamples == 0) {
+            return 0;
+        }
+        int lost = 0;
+        for (int i = 0; i < numSamples; i++) {
+            if (samples[i] < 0) {
+                lost++;
+            }
+        }
+        return (double) lost / numSamples;
+    }
+
+    public synchronized long getScore() {
+        if (!answered) {
+            return LOSS_PENALTY;
+        }
+        double loss = getLossRatio();
+        return (long) ((1 - loss) * getPercentile(0.5) + loss * LOSS_PENALTY);
+    }
+
+    public synchronized int getNumSamples() {
+        return numSamples;
+    }
+
+    public synchronized long getLastUpdated() {
+        return lastUpdated;
+    }
+
+    /**
+     * @param generation background cycle of the latest probe
+     */
+    public synchronized void setGeneration(long generation) {
+        this.generation = generation;
+    }
+
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return true if the whole window is lost probes
+     */
+    public synchronized boolean isUnreachable() {
+        return numSamples >= MIN_SAMPLES_UNREACHABLE && getLossRatio() == 1.0;
+    }
+}
@@ -28,25 +28,97 @@ import java.net.InetAddress;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xbill.DNS.Name;
 
 /**
+ * Latency of TLD servers. Every probe goes into the LatencyStats of its
+ * server and moves the server in the LatencyIndex the API picks servers
+ * from.
+ *
+ * Optionally the statistics are mirrored into the H2 table serverLatency
+ * for ad-hoc inspection. Times in the table are microseconds, latency is
+ * the score of the server. Probe threads only update the in-memory statistics and queue the server
+ * for writing, a server already queued is not queued again. A single
+ * writer thread owns all updates of the table: it collects queued servers
+ * and writes their current statistics as one JDBC batch on a prepared
+ * statement it keeps, once FLUSH_SIZE servers are collected or
+ * FLUSH_INTERVAL_MILLIS after the first one.
+ *
+ * Servers do not stay forever. Every probe records the background cycle
+ * (generation) it ran in; sweep() expires servers that were not probed in
+ * the last completed cycle, so did not show up in their delegation, and
+ * evicts servers that lost every probe of their window. Servers of a
+ * delegation that changed in the root zone are evicted once the pipeline
+ * went idle after the change without probing them again.
+ *
+ * Number of servers, the oldest update and a version that changes with
+ * every write are kept up to date as probes come in, so /status and the
+ * ETag of /statistics never scan the store.
  *
  * @author mieslingert
  */
 public class LatencyStore {
 
+    public interface Exporter {
+
+        void export(Name tld, InetAddress ip, LatencyStats stats);
+    }
+
+    public static final int FLUSH_SIZE = 500;
+    public static final long FLUSH_INTERVAL_MILLIS = 1000;
+
     private Connection cn;
+    private final LatencyIndex index = new LatencyIndex();
+    private final ConcurrentHashMap<Name, ConcurrentHashMap<InetAddress, LatencyStats>> stats = new ConcurrentHashMap<>();
+    private final BlockingQueue<Update> updates = new LinkedBlockingQueue<>();
+    private final ConcurrentHashMap<Name, Long> changed = new ConcurrentHashMap<>();
+    // purged TLD -> generation it was purged in, probes finishing late in
+    // that generation must not bring it back
+    private final ConcurrentHashMap<Name, Long> purged = new ConcurrentHashMap<>();
+    private volatile long generation = 0;
+    private volatile long completedGeneration = 0;
+    private final AtomicLong numExpired = new AtomicLong();
+    private final AtomicLong numEvicted = new AtomicLong();
+    private final AtomicInteger numServers = new AtomicInteger();
+    private final AtomicLong version = new AtomicLong();
+    // guarded by itself, only holds stats that are in the store
+    private final TreeSet<LatencyStats> byLastUpdated = new TreeSet<>(LatencyStats.BY_LAST_UPDATED);
+    private volatile long oldestUpdate = 0;
     private static Logger logger = LoggerFactory.getLogger(LatencyStore.class);
 
+    // written by the writer thread only
+    private volatile long numFlushes = 0;
+    private volatile long numRowsWritten = 0;
+    private volatile long lastFlushMicros = 0;
+    private volatile long maxFlushMicros = 0;
+    private volatile long totalFlushMicros = 0;
+
     private LatencyStore() {
     }
 
+    /**
+     * @param cn H2 connection to mirror the statistics to, may be null
+     */
     public LatencyStore(Connection cn) {
         this.cn = cn;
+        if (cn == null) {
+            return;
+        }
         try {
             Statement st = cn.createStatement();
             st.execute("create table serverLatency("
@@ -54,7 +126,13 @@ public class LatencyStore {
                     + "ip varchar(256),"
                     + "ipversion tinyint,"
                     + "latency bigint,"
-                    + "lastUpdated bigint);");
+                    + "lastUpdated bigint,"
+                    + "srtt bigint,"
+                    + "rttvar bigint,"
+                    + "p50 bigint,"
+                    + "p95 bigint,"
+                    + "loss double,"
+                    + "samples int);");
             st.execute("create unique index i1 on serverLatency(tld,ip);");
             st.execute("create index i2 on serverLatency(tld,latency);");
             st.close();
@@ -62,31 +140,396 @@ public class LatencyStore {
             logger.error("setup db failed: {}", e.toString());
             System.exit(1);
         }
+        Thread writer = new Thread(this::writeLoop, "LatencyStoreWriter");
+        writer.setDaemon(true);
+        writer.start();
     }
 
-    public void storeLatency(Name tld, InetAddress ip, long latency, long lastUpdated) {
-        if (de.mieslinger.nsrrsetd.Main.doStoreResults) {
-            try {
-                // FIXME: Delete old entries (older than 3x reRun?)
-                PreparedStatement st = cn.prepareStatement("merge into serverLatency "
-                        + "key(tld,ip) "
-                        + "values (?,?,?,?,?);");
-                st.setString(1, tld.toString(true));
-                st.setString(2, ip.getHostAddress());
-                if (ip instanceof Inet6Address) {
-                    st.setInt(3, 6);
+    /**
+     * Adds an answered probe.
+     *
+     * @param rtt round trip time in nanoseconds
+     */
+    public void storeLatency(Name tld, InetAddress ip, long rtt, long lastUpdated) {
+        LatencyStats st = statsOf(tld, ip);
+        if (st == null) {
+            return;
+        }
+        synchronized (byLastUpdated) {
+            byLastUpdated.remove(st);
+            st.addSample(rtt, lastUpdated);
+            published(tld, ip, st);
+        }
+    }
+
+    /**
+     * Adds a probe that timed out or got no usable answer.
+     */
+    public void storeLoss(Name tld, InetAddress ip, long lastUpdated) {
+        LatencyStats st = statsOf(tld, ip);
+        if (st == null) {
+            return;
+        }
+        synchronized (byLastUpdated) {
+            byLastUpdated.remove(st);
+            st.addLoss(lastUpdated);
+            published(tld, ip, st);
+        }
+    }
+
+    /**
+     * Restores the statistics of a server from a snapshot, window and
+     * loss ratio included.
+     *
+     * @param samples window, oldest first, lost probes as -1
+     * @see LatencyStats#restore(long[], long, long, long)
+     */
+    public void restoreLatency(Name tld, InetAddress ip, long[] samples, long srtt, long rttvar, long lastUpdated) {
+        LatencyStats st = statsOf(tld, ip);
+        if (st == null) {
+            return;
+        }
+        synchronized (byLastUpdated) {
+            byLastUpdated.remove(st);
+            st.restore(samples, srtt, rttvar, lastUpdated);
+            published(tld, ip, st);
+        }
+    }
+
+    /**
+     * New servers are added while holding the TLD's entry, so they never go
+     * into the map of a TLD purgeTld() just dropped.
+     *
+     * @return null if tld was purged in the current generation
+     */
+    private LatencyStats statsOf(Name tld, InetAddress ip) {
+        Map<InetAddress, LatencyStats> known = stats.get(tld);
+        LatencyStats st = known == null ? null : known.get(ip);
+        if (st != null) {
+            return st;
+        }
+        LatencyStats[] found = new LatencyStats[1];
+        stats.compute(tld, (k, servers) -> {
+            if (servers == null) {
+                Long purgedIn = purged.get(k);
+                if (purgedIn != null && purgedIn == generation) {
+                    return null;
+                }
+                servers = new ConcurrentHashMap<>();
+            }
+            found[0] = servers.computeIfAbsent(ip, a -> {
+                numServers.incrementAndGet();
+                return new LatencyStats();
+            });
+            return servers;
+        });
+        return found[0];
+    }
+
+    /**
+     * Puts st back in update order after it changed and hands its score to
+     * the index and the table, unless a sweep or purge removed it in the
+     * meantime. Caller holds byLastUpdated: removeServer() and purgeTld()
+     * take it between dropping the stats and removing them from the index,
+     * so an update that still saw st reaches the index before the removal.
+     */
+    private void published(Name tld, InetAddress ip, LatencyStats st) {
+        if (getStats(tld, ip) == st) {
+            byLastUpdated.add(st);
+            st.setGeneration(generation);
+            index.update(tld, ip, st.getScore());
+            queue(tld, ip, st);
+        }
+        updateOldest();
+        version.incrementAndGet();
+    }
+
+    private void updateOldest() {
+        oldestUpdate = byLastUpdated.isEmpty() ? 0 : byLastUpdated.first().getLastUpdated();
+    }
+
+    private void queue(Name tld, InetAddress ip, LatencyStats st) {
+        if (cn != null && st.markDirty()) {
+            updates.add(new Update(tld, ip, st));
+        }
+    }
+
+    /**
+     * Forgets all servers of a delegation that left the root zone. The
+     * delete is done by the writer after the updates queued before.
+     * Probes of tld that finish later in the current cycle are ignored.
+     */
+    public void purgeTld(Name tld) {
+        purged.put(tld, generation);
+        Map<InetAddress, LatencyStats> servers = stats.remove(tld);
+        if (servers != null) {
+            numServers.addAndGet(-servers.size());
+            synchronized (byLastUpdated) {
+                byLastUpdated.removeAll(servers.values());
+                updateOldest();
+            }
+            version.incrementAndGet();
+        }
+        changed.remove(tld);
+        index.remove(tld);
+        if (cn != null) {
+            updates.add(new Update(tld, null, null));
+        }
+    }
+
+    /**
+     * Starts a background cycle, probes from now on belong to it.
+     *
+     * @return generation of the new cycle
+     */
+    public long startCycle() {
+        // the probes of the cycle before are done
+        purged.clear();
+        return ++generation;
+    }
+
+    /**
+     * Every server that is still in its delegation has been probed in
+     * generation now.
+     */
+    public void completeCycle(long generation) {
+        completedGeneration = generation;
+    }
+
+    /**
+     * Marks a delegation whose NS set changed. Call before queuing its
+     * lookups.
+     */
+    public void markChanged(Name tld) {
+        changed.put(tld, System.currentTimeMillis());
+    }
+
+    /**
+     * Removes stale servers. Readers are not blocked, the index gets a new
+     * Ranking for every TLD that lost servers.
+     *
+     * @param pipelineIdle true if all work queued before this call has been
+     * done, which settles the delegations marked as changed
+     */
+    public synchronized void sweep(boolean pipelineIdle) {
+        Map<Name, Long> settled = new HashMap<>();
+        if (pipelineIdle) {
+            settled.putAll(changed);
+        }
+        int expired = 0;
+        int evicted = 0;
+        for (Map.Entry<Name, ConcurrentHashMap<InetAddress, LatencyStats>> tld : stats.entrySet()) {
+            Long changedAt = settled.get(tld.getKey());
+            for (Map.Entry<InetAddress, LatencyStats> server : tld.getValue().entrySet()) {
+                LatencyStats st = server.getValue();
+                if (st.getGeneration() < completedGeneration) {
+                    expired++;
+                } else if (st.isUnreachable()
+                        || (changedAt != null && st.getLastUpdated() < changedAt)) {
+                    evicted++;
                 } else {
-                    st.setInt(3, 4);
+                    continue;
+                }
+                removeServer(tld.getKey(), server.getKey());
+            }
+        }
+        for (Map.Entry<Name, Long> e : settled.entrySet()) {
+            changed.remove(e.getKey(), e.getValue());
+        }
+        numExpired.addAndGet(expired);
+        numEvicted.addAndGet(evicted);
+        if (expired > 0 || evicted > 0) {
+            logger.info("sweep: expired {} servers not seen in cycle {}, evicted {} unreachable or replaced servers",
+                    expired, completedGeneration, evicted);
+        }
+    }
+
+    private void removeServer(Name tld, InetAddress ip) {
+        stats.computeIfPresent(tld, (k, servers) -> {
+            LatencyStats st = servers.remove(ip);
+            if (st != null) {
+                numServers.decrementAndGet();
+                synchronized (byLastUpdated) {
+                    byLastUpdated.remove(st);
+                    updateOldest();
+                }
+            }
+            return servers.isEmpty() ? null : servers;
+        });
+        version.incrementAndGet();
+        index.remove(tld, ip);
+        if (cn != null) {
+            updates.add(new Update(tld, ip, null));
+        }
+    }
+
+    public long getNumExpired() {
+        return numExpired.get();
+    }
+
+    public long getNumEvicted() {
+        return numEvicted.get();
+    }
+
+    public LatencyIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * @return statistics of a server, null if it was never probed
+     */
+    public LatencyStats getStats(Name tld, InetAddress ip) {
+        Map<InetAddress, LatencyStats> servers = stats.get(tld);
+        return servers == null ? null : servers.get(ip);
+    }
+
+    /**
+     * @return number of servers with statistics
+     */
+    public int size() {
+        return numServers.get();
+    }
+
+    /**
+     * @return a number that changes whenever a server is added, probed or
+     * removed
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * @return lastUpdated of the least recently probed server, 0 if there is
+     * none
+     */
+    public long getOldestUpdate() {
+        return oldestUpdate;
+    }
+
+    private void writeLoop() {
+        PreparedStatement merge;
+        PreparedStatement delete;
+        PreparedStatement deleteServer;
+        try {
+            merge = cn.prepareStatement("merge into serverLatency "
+                    + "key(tld,ip) "
+                    + "values (?,?,?,?,?,?,?,?,?,?,?);");
+            delete = cn.prepareStatement("delete from serverLatency where tld = ?");
+            deleteServer = cn.prepareStatement("delete from serverLatency where tld = ? and ip = ?");
+        } catch (SQLException e) {
+            logger.error("preparing statements failed: {}", e.toString());
+            return;
+        }
+        List<Update> batch = new ArrayList<>(FLUSH_SIZE);
+        while (true) {
+            try {
+                batch.add(updates.take());
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL_MILLIS);
+                while (batch.size() < FLUSH_SIZE) {
+                    Update u = updates.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (u == null) {
+                        break;
+                    }
+                    batch.add(u);
                 }
-                st.setLong(4, latency);
-                st.setLong(5, lastUpdated);
-                st.execute();
-                logger.debug("inserted {} {} {}ms", tld.toString(true), ip.getHostAddress(), latency);
-                st.close();
+                flush(batch, merge, delete, deleteServer);
+            } catch (InterruptedException e) {
+                return;
             } catch (Exception e) {
-                logger.warn("merge failed: {}", e.toString());
+                logger.warn("flush of {} updates failed: {}", batch.size(), e.toString());
+            }
+            batch.clear();
+        }
+    }
+
+    private void flush(List<Update> batch, PreparedStatement merge, PreparedStatement delete,
+            PreparedStatement deleteServer) throws SQLException {
+        long begin = System.nanoTime();
+        int rows = 0;
+        for (Update u : batch) {
+            if (u.stats == null && u.ip != null) {
+                rows += merge.executeBatch().length;
+                deleteServer.setString(1, u.tld.toString(true));
+                deleteServer.setString(2, u.ip.getHostAddress());
+                deleteServer.executeUpdate();
+                continue;
+            }
+            if (u.stats == null) {
+                // keep the order of updates and purges
+                rows += merge.executeBatch().length;
+                delete.setString(1, u.tld.toString(true));
+                int n = delete.executeUpdate();
+                logger.info("purged {} servers of removed delegation {}", n, u.tld.toString(true));
+                continue;
+            }
+            // later probes are picked up by this write, the next one queues again
+            u.stats.clearDirty();
+            merge.setString(1, u.tld.toString(true));
+            merge.setString(2, u.ip.getHostAddress());
+            if (u.ip instanceof Inet6Address) {
+                merge.setInt(3, 6);
+            } else {
+                merge.setInt(3, 4);
             }
+            merge.setLong(4, u.stats.getScore() / 1000);
+            merge.setLong(5, u.stats.getLastUpdated());
+            merge.setLong(6, u.stats.getSrtt() / 1000);
+            merge.setLong(7, u.stats.getRttvar() / 1000);
+            merge.setLong(8, u.stats.getPercentile(0.5) / 1000);
+            merge.setLong(9, u.stats.getPercentile(0.95) / 1000);
+            merge.setDouble(10, u.stats.getLossRatio());
+            merge.setInt(11, u.stats.getNumSamples());
+            merge.addBatch();
         }
+        rows += merge.executeBatch().length;
+
+        long micros = (System.nanoTime() - begin) / 1000;
+        numFlushes++;
+        numRowsWritten += rows;
+        lastFlushMicros = micros;
+        totalFlushMicros += micros;
+        maxFlushMicros = Math.max(maxFlushMicros, micros);
+        logger.debug("flushed {} rows in {}us, {} updates queued", rows, micros, updates.size());
+    }
+
+    /**
+     * Hands a copy of the statistics of every server to exporter, used to
+     * write snapshots.
+     */
+    public void exportLatency(Exporter exporter) {
+        for (Map.Entry<Name, ConcurrentHashMap<InetAddress, LatencyStats>> tld : stats.entrySet()) {
+            for (Map.Entry<InetAddress, LatencyStats> server : tld.getValue().entrySet()) {
+                exporter.export(tld.getKey(), server.getKey(), server.getValue().copy());
+            }
+        }
+    }
+
+    /**
+     * @return servers waiting to be written
+     */
+    public int getQueueDepth() {
+        return updates.size();
+    }
+
+    public long getNumFlushes() {
+        return numFlushes;
+    }
+
+    public long getNumRowsWritten() {
+        return numRowsWritten;
+    }
+
+    public long getLastFlushMicros() {
+        return lastFlushMicros;
+    }
+
+    public long getMaxFlushMicros() {
+        return maxFlushMicros;
+    }
+
+    public long getAvgFlushMicros() {
+        long n = numFlushes;
+        return n == 0 ? 0 : totalFlushMicros / n;
     }
 
     public String dumpLatencyData() {
@@ -111,4 +554,21 @@ public class LatencyStore {
         }
         return "Error";
     }
+
+    /**
+     * A server to write. Without stats the row of ip is deleted, or all rows
+     * of tld if ip is null too.
+     */
+    private static class Update {
+
+        private final Name tld;
+        private final InetAddress ip;
+        private final LatencyStats stats;
+
+        private Update(Name tld, InetAddress ip, LatencyStats stats) {
+            this.tld = tld;
+            this.ip = ip;
+            this.stats = stats;
+        }
+    }
 }
@@ -0,0 +1,219 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 mieslingert.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.mieslinger.nsrrsetd.store;
+
+import de.mieslinger.nsrrsetd.transfer.QueryResult;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import org.xbill.DNS.Name;
+
+/**
+ * Answers of /getDelegatingNSSet by zone.
+ *
+ * An entry lives as long as the TTL of the NS RRset it holds, capped at
+ * maxTtl. NXDOMAIN and answers without NS RRset are cached for the
+ * negative TTL taken from the SOA (min of its TTL and minimum field).
+ * Errors are never cached.
+ *
+ * Lookups are a ConcurrentHashMap get. When more than maxEntries are held
+ * a few entries are sampled and the one expiring first is dropped, along
+ * with any expired entry seen on the way.
+ *
+ * @author mieslingert
+ */
+public class ResponseCache {
+
+    private final ConcurrentHashMap<Name, Entry> entries = new ConcurrentHashMap<>();
+    private static final int EVICTION_SAMPLES = 16;
+
+    private final AtomicInteger size = new AtomicInteger();
+    private final int maxEntries;
+    private final long maxTtl;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder negativeHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxTtl in seconds
+     */
+    public ResponseCache(int maxEntries, long maxTtl) {
+        this.maxEntries = maxEntries;
+        this.maxTtl = maxTtl;
+    }
+
+    /**
+     * @return the cached answer for zone, null if there is none or it
+     * expired
+     */
+    public Entry get(Name zone) {
+        Entry e = entries.get(zone);
+        if (e != null && e.expires - System.nanoTime() <= 0) {
+            remove(e);
+            e = null;
+        }
+        if (e == null) {
+            misses.increment();
+            return null;
+        }
+        if (e.isNegative()) {
+            negativeHits.increment();
+        } else {
+            hits.increment();
+        }
+        return e;
+    }
+
+    /**
+     * @param ttl in seconds, nothing is cached for 0 or less
+     */
+    public void put(Name zone, QueryResult qr, long ttl) {
+        if (maxEntries <= 0 || ttl <= 0) {
+            return;
+        }
+        long lifetime = Math.min(ttl, maxTtl) * 1_000_000_000L;
+        Entry e = new Entry(zone, qr, System.nanoTime() + lifetime);
+        Entry old = entries.put(zone, e);
+        if (old == null) {
+            size.incrementAndGet();
+        }
+        while (size.get() > maxEntries) {
+            evict();
+        }
+    }
+
+    private void evict() {
+        long now = System.nanoTime();
+        Entry victim = null;
+        Iterator<Entry> it = entries.values().iterator();
+        for (int i = 0; i < EVICTION_SAMPLES && it.hasNext(); i++) {
+            Entry e = it.next();
+            if (e.expires - now <= 0) {
+                remove(e);
+            } else if (victim == null || e.expires - victim.expires < 0) {
+                victim = e;
+            }
+        }
+        if (victim != null && remove(victim)) {
+            evictions.increment();
+        }
+    }
+
+    /**
+     * @return false if e was no longer in the cache
+     */
+    private boolean remove(Entry e) {
+        if (entries.remove(e.zone, e)) {
+            size.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getNegativeHits() {
+        return negativeHits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public static class Entry {
+
+        private final Name zone;
+        private final String status;
+        private final String delegation;
+        private final List<String> rrSet;
+        private final Map<String, List<String>> glue;
+        private final String queriedServer;
+        private final long queryTime;
+        private final long expires;
+
+        private Entry(Name zone, QueryResult qr, long expires) {
+            this.zone = zone;
+            this.status = qr.getStatus();
+            this.delegation = qr.getDelegation();
+            this.rrSet = Collections.unmodifiableList(qr.getRrSet());
+            this.glue = qr.getGlue() == null ? null : Collections.unmodifiableMap(qr.getGlue());
+            this.queriedServer = qr.getAnsweredServer();
+            this.queryTime = qr.getQueryTime();
+            this.expires = expires;
+        }
+
+        public String getStatus() {
+            return status;
+        }
+
+        public List<String> getRrSet() {
+            return rrSet;
+        }
+
+        public String getDelegation() {
+            return delegation;
+        }
+
+        public Map<String, List<String>> getGlue() {
+            return glue;
+        }
+
+        /**
+         * @return seconds until this entry expires, at least 1
+         */
+        public long getTtl() {
+            return Math.max(1, (expires - System.nanoTime()) / 1_000_000_000L);
+        }
+
+        public String getQueriedServer() {
+            return queriedServer;
+        }
+
+        /**
+         * @return time the query that filled this entry took, in ms
+         */
+        public long getQueryTime() {
+            return queryTime;
+        }
+
+        public boolean isNegative() {
+            return rrSet.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 mieslingert.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.mieslinger.nsrrsetd.store;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xbill.DNS.DNSInput;
+import org.xbill.DNS.Name;
+
+/**
+ * On-disk copy of the delegation index and the latency data, so a restarted
+ * daemon can answer right away and survives an unreachable AXFR source.
+ *
+ * The file is a flat binary dump: header, delegations with their NS names,
+ * glue, latency rows with srtt, rttvar and the sample window of each
+ * server in nanoseconds, so the loss ratio survives a restart. Names are
+ * stored in uncompressed wire format. Loading maps the file and parses it
+ * in one pass. Writes go to a temporary file that replaces the snapshot
+ * atomically, a crash never leaves a half written snapshot behind.
+ *
+ * @author mieslingert
+ */
+public class Snapshot {
+
+    private static final int MAGIC = 0x4e535253; // "NSRS"
+    private static final int VERSION = 3;
+    private static final Logger logger = LoggerFactory.getLogger(Snapshot.class);
+
+    private final DelegationIndex index;
+    private final long created;
+    private final long lastFullTransfer;
+    private final int numLatency;
+
+    private Snapshot(DelegationIndex index, long created, long lastFullTransfer, int numLatency) {
+        this.index = index;
+        this.created = created;
+        this.lastFullTransfer = lastFullTransfer;
+        this.numLatency = numLatency;
+    }
+
+    /**
+     * @param store may be null, no latency data is written then
+     */
+    public static void write(Path file, DelegationIndex index, long lastFullTransfer, LatencyStore store) throws Exception {
+        List<Name> tlds = new ArrayList<>();
+        List<InetAddress> servers = new ArrayList<>();
+        List<LatencyStats> rows = new ArrayList<>();
+        if (store != null) {
+            store.exportLatency((tld, ip, st) -> {
+                tlds.add(tld);
+                servers.add(ip);
+                rows.add(st);
+            });
+        }
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(System.currentTimeMillis());
+            out.writeLong(lastFullTransfer);
+            out.writeLong(index.getSerial());
+
+            out.writeInt(index.size());
+            for (Name delegation : index.getDelegations()) {
+                out.write(delegation.toWire());
+                List<Name> nameservers = index.getNameservers(delegation);
+                out.writeShort(nameservers.size());
+                for (Name ns : nameservers) {
+                    out.write(ns.toWire());
+                }
+            }
+
+            out.writeInt(index.glueSize());
+            for (Name host : index.getGlueHosts()) {
+                out.write(host.toWire());
+                List<InetAddress> addresses = index.getGlue(host);
+                out.writeShort(addresses.size());
+                for (InetAddress address : addresses) {
+                    writeAddress(out, address);
+                }
+            }
+
+            out.writeInt(rows.size());
+            for (int i = 0; i < rows.size(); i++) {
+                LatencyStats st = rows.get(i);
+                out.write(tlds.get(i).toWire());
+                writeAddress(out, servers.get(i));
+                out.writeLong(st.getLastUpdated());
+                out.writeLong(st.getSrtt());
+                out.writeLong(st.getRttvar());
+                long[] samples = st.getSamples();
+                out.writeByte(samples.length);
+                for (long sample : samples) {
+                    out.writeLong(sample);
+                }
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logger.info("wrote snapshot {}: serial {}, {} delegations, {} latency rows",
+                file, index.getSerial(), index.size(), rows.size());
+    }
+
+    private static void writeAddress(DataOutputStream out, InetAddress address) throws IOException {
+        byte[] b = address.getAddress();
+        out.writeByte(b.length);
+        out.write(b);
+    }
+
+    /**
+     * Reads a snapshot and puts its latency rows into store. The store is
+     * only touched once the whole file was read, a truncated or corrupt
+     * snapshot leaves it empty.
+     *
+     * @param store may be null, latency rows are skipped then
+     */
+    public static Snapshot load(Path file, LatencyStore store) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            DNSInput in = new DNSInput(buffer);
+            if (in.remaining() < 8 || readInt(in) != MAGIC) {
+                throw new IOException(file + " is not a snapshot");
+            }
+            int version = readInt(in);
+            if (version != VERSION) {
+                throw new IOException(file + ": unsupported snapshot version " + version);
+            }
+            long created = readLong(in);
+            long lastFullTransfer = readLong(in);
+
+            DelegationIndex.Builder b = new DelegationIndex.Builder();
+            b.setSerial(readLong(in));
+            int numDelegations = readInt(in);
+            for (int i = 0; i < numDelegations; i++) {
+                Name delegation = new Name(in);
+                int numNameservers = in.readU16();
+                for (int j = 0; j < numNameservers; j++) {
+                    b.addNameserver(delegation, new Name(in));
+                }
+            }
+
+            int numGlue = readInt(in);
+            for (int i = 0; i < numGlue; i++) {
+                Name host = new Name(in);
+                int numAddresses = in.readU16();
+                for (int j = 0; j < numAddresses; j++) {
+                    b.addGlue(host, readAddress(in));
+                }
+            }
+
+            int numLatency = readInt(in);
+            List<Name> tlds = new ArrayList<>();
+            List<InetAddress> servers = new ArrayList<>();
+            List<LatencyStats> rows = new ArrayList<>();
+            for (int i = 0; i < numLatency; i++) {
+                Name tld = new Name(in);
+                InetAddress ip = readAddress(in);
+                long lastUpdated = readLong(in);
+                long srtt = readLong(in);
+                long rttvar = readLong(in);
+                long[] samples = new long[in.readU8()];
+                for (int j = 0; j < samples.length; j++) {
+                    samples[j] = readLong(in);
+                }
+                LatencyStats st = new LatencyStats();
+                st.restore(samples, srtt, rttvar, lastUpdated);
+                tlds.add(tld);
+                servers.add(ip);
+                rows.add(st);
+            }
+
+            DelegationIndex index = b.build();
+            if (store != null) {
+                for (int i = 0; i < rows.size(); i++) {
+                    LatencyStats st = rows.get(i);
+                    store.restoreLatency(tlds.get(i), servers.get(i),
+                            st.getSamples(), st.getSrtt(), st.getRttvar(), st.getLastUpdated());
+                }
+            }
+            logger.info("loaded snapshot {} from {}: serial {}, {} delegations, {} latency rows",
+                    file, new Date(created), index.getSerial(), index.size(), numLatency);
+            return new Snapshot(index, created, lastFullTransfer, numLatency);
+        }
+    }
+
+    private static int readInt(DNSInput in) throws IOException {
+        return (int) in.readU32();
+    }
+
+    private static long readLong(DNSInput in) throws IOException {
+        return (in.readU32() << 32) | in.readU32();
+    }
+
+    private static InetAddress readAddress(DNSInput in) throws IOException {
+        int length = in.readU8();
+        if (length != 4 && length != 16) {
+            throw new IOException("bad address length " + length);
+        }
+        return InetAddress.getByAddress(in.readByteArray(length));
+    }
+
+    public DelegationIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * @return time the snapshot was written
+     */
+    public long getCreated() {
+        return created;
+    }
+
+    /**
+     * @return time of the last full transfer of the root zone in the snapshot
+     */
+    public long getLastFullTransfer() {
+        return lastFullTransfer;
+    }
+
+    public int getNumLatency() {
+        return numLatency;
+    }
+}
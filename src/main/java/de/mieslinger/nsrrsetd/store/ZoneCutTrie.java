@@ -0,0 +1,233 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 mieslingert.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.mieslinger.nsrrsetd.store;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import org.xbill.DNS.Name;
+
+/**
+ * Known zone cuts in a trie of reversed labels: com -> de -> (de.com).
+ *
+ * The root zone delegations come from the DelegationIndex, cuts below them
+ * like de.com are learned while serving, when a referral showed that their
+ * servers delegate further. Lookups walk the trie once, from the TLD down
+ * to the name, and are lock free, changes are synchronized.
+ *
+ * Learned cuts remember when a lookup last used them. Those unused for
+ * LEARNED_TTL_MILLIS are forgotten by expire(), and at MAX_LEARNED the
+ * least recently used one makes room for a new cut, so names sent by
+ * clients can not fill the set for good.
+ *
+ * @author mieslingert
+ */
+public class ZoneCutTrie {
+
+    /**
+     * Learned cuts can be probed every cycle, this keeps their number sane.
+     */
+    public static final int MAX_LEARNED = 10000;
+    public static final long LEARNED_TTL_MILLIS = 86400_000L;
+    // last use is recorded at most this often per cut
+    private static final long TOUCH_INTERVAL_MILLIS = 1000;
+
+    private final Node root = new Node();
+    private Set<Name> delegations = new HashSet<>();
+    // learned cut -> last used, in currentTimeMillis
+    private final ConcurrentHashMap<Name, Long> learned = new ConcurrentHashMap<>();
+    // evicted by learn(), handed out by the next expire()
+    private final List<Name> evicted = new ArrayList<>();
+
+    /**
+     * Replaces the root zone delegations, learned cuts are kept.
+     */
+    public synchronized void setDelegations(Set<Name> newDelegations) {
+        for (Name cut : delegations) {
+            if (!newDelegations.contains(cut)) {
+                Node n = find(cut);
+                if (n != null) {
+                    n.cut = null;
+                }
+            }
+        }
+        for (Name cut : newDelegations) {
+            node(cut).cut = cut;
+        }
+        delegations = new HashSet<>(newDelegations);
+    }
+
+    /**
+     * Adds a cut below the root zone delegations, or marks a known one as
+     * used. At MAX_LEARNED the least recently used cut is evicted.
+     *
+     * @return false if the cut was known
+     */
+    public synchronized boolean learn(Name cut) {
+        long now = System.currentTimeMillis();
+        if (delegations.contains(cut) || learned.replace(cut, now) != null) {
+            return false;
+        }
+        if (learned.size() >= MAX_LEARNED) {
+            Name lru = null;
+            long oldest = Long.MAX_VALUE;
+            for (Map.Entry<Name, Long> e : learned.entrySet()) {
+                if (e.getValue() < oldest) {
+                    oldest = e.getValue();
+                    lru = e.getKey();
+                }
+            }
+            forget(lru);
+            evicted.add(lru);
+        }
+        learned.put(cut, now);
+        node(cut).cut = cut;
+        return true;
+    }
+
+    /**
+     * Records that a lookup used cut, nothing happens if it is not learned.
+     */
+    public void touch(Name cut) {
+        Long used = learned.get(cut);
+        long now = System.currentTimeMillis();
+        if (used != null && now - used > TOUCH_INTERVAL_MILLIS) {
+            learned.replace(cut, used, now);
+        }
+    }
+
+    /**
+     * Forgets the learned cuts not used for LEARNED_TTL_MILLIS.
+     *
+     * @return those and the cuts evicted by learn() since the last call,
+     * unless they were learned again
+     */
+    public synchronized List<Name> expire() {
+        long notUsedSince = System.currentTimeMillis() - LEARNED_TTL_MILLIS;
+        List<Name> removed = new ArrayList<>();
+        for (Name cut : evicted) {
+            if (!learned.containsKey(cut)) {
+                removed.add(cut);
+            }
+        }
+        evicted.clear();
+        for (Map.Entry<Name, Long> e : learned.entrySet()) {
+            if (e.getValue() < notUsedSince) {
+                removed.add(e.getKey());
+                forget(e.getKey());
+            }
+        }
+        return removed;
+    }
+
+    private void forget(Name cut) {
+        learned.remove(cut);
+        Node n = find(cut);
+        if (n != null && cut.equals(n.cut)) {
+            n.cut = null;
+        }
+    }
+
+    /**
+     * The deepest known cut above name for which usable is true. name itself
+     * only counts if it is a TLD, its delegation is in the TLD's own zone.
+     *
+     * @return null if there is none
+     */
+    public Name closestEnclosing(Name name, Predicate<Name> usable) {
+        int k = name.labels() - 1;
+        int maxDepth = Math.max(1, k - 1);
+        Name best = null;
+        Node n = root;
+        for (int depth = 1; depth <= maxDepth; depth++) {
+            n = n.children.get(key(name, k - depth));
+            if (n == null) {
+                break;
+            }
+            Name cut = n.cut;
+            if (cut != null && usable.test(cut)) {
+                best = cut;
+            }
+        }
+        return best;
+    }
+
+    public boolean isLearned(Name cut) {
+        return learned.containsKey(cut);
+    }
+
+    /**
+     * @return learned cuts a lookup used at or after since
+     */
+    public List<Name> getLearnedUsedSince(long since) {
+        List<Name> used = new ArrayList<>();
+        for (Map.Entry<Name, Long> e : learned.entrySet()) {
+            if (e.getValue() >= since) {
+                used.add(e.getKey());
+            }
+        }
+        return used;
+    }
+
+    public int learnedSize() {
+        return learned.size();
+    }
+
+    public synchronized int size() {
+        return delegations.size() + learned.size();
+    }
+
+    private Node node(Name cut) {
+        int k = cut.labels() - 1;
+        Node n = root;
+        for (int i = k - 1; i >= 0; i--) {
+            n = n.children.computeIfAbsent(key(cut, i), l -> new Node());
+        }
+        return n;
+    }
+
+    private Node find(Name cut) {
+        int k = cut.labels() - 1;
+        Node n = root;
+        for (int i = k - 1; i >= 0 && n != null; i--) {
+            n = n.children.get(key(cut, i));
+        }
+        return n;
+    }
+
+    private static String key(Name name, int label) {
+        return name.getLabelString(label).toLowerCase(Locale.ROOT);
+    }
+
+    private static class Node {
+
+        private final ConcurrentHashMap<String, Node> children = new ConcurrentHashMap<>(4);
+        private volatile Name cut;
+    }
+}
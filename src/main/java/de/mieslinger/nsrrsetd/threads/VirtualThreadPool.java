@@ -0,0 +1,83 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 mieslingert.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.mieslinger.nsrrsetd.threads;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+/**
+ * Jetty thread pool that runs every job on a fresh virtual thread.
+ *
+ * There is no upper bound and no idle thread, blocking request handlers
+ * only cost a parked virtual thread.
+ *
+ * @author mieslingert
+ */
+public class VirtualThreadPool implements ThreadPool {
+
+    private final ThreadFactory factory = WorkerThreads.factory("jetty");
+    private final AtomicInteger running = new AtomicInteger();
+    private final Object joinLock = new Object();
+
+    @Override
+    public void execute(Runnable job) {
+        running.incrementAndGet();
+        factory.newThread(() -> {
+            try {
+                job.run();
+            } finally {
+                if (running.decrementAndGet() == 0) {
+                    synchronized (joinLock) {
+                        joinLock.notifyAll();
+                    }
+                }
+            }
+        }).start();
+    }
+
+    @Override
+    public void join() throws InterruptedException {
+        synchronized (joinLock) {
+            while (running.get() > 0) {
+                joinLock.wait();
+            }
+        }
+    }
+
+    @Override
+    public int getThreads() {
+        return running.get();
+    }
+
+    @Override
+    public int getIdleThreads() {
+        return 0;
+    }
+
+    @Override
+    public boolean isLowOnThreads() {
+        return false;
+    }
+}
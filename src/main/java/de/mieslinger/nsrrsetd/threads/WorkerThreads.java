@@ -0,0 +1,94 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 mieslingert.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.mieslinger.nsrrsetd.threads;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the threads of the background workers, either as classic daemon
+ * platform threads or as virtual threads.
+ *
+ * Virtual threads are looked up reflectively, so the jar still builds and
+ * runs on JDK 17; asking for them on a JDK without Thread.ofVirtual() fails
+ * at startup.
+ *
+ * @author mieslingert
+ */
+public class WorkerThreads {
+
+    private static boolean virtual = false;
+
+    private WorkerThreads() {
+    }
+
+    public static void useVirtualThreads(boolean enabled) {
+        if (enabled) {
+            // fail early instead of at the first thread
+            virtualThreadFactory("probe");
+        }
+        virtual = enabled;
+    }
+
+    public static boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * @param name thread name, used as prefix if the factory makes more
+     * than one thread
+     */
+    public static ThreadFactory factory(String name) {
+        if (virtual) {
+            return virtualThreadFactory(name);
+        }
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            int n = count.getAndIncrement();
+            Thread t = new Thread(r, n == 0 ? name : name + "-" + n);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    public static Thread start(String name, Runnable r) {
+        Thread t = factory(name).newThread(r);
+        t.start();
+        return t;
+    }
+
+    private static ThreadFactory virtualThreadFactory(String name) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Method setName = builderClass.getMethod("name", String.class, long.class);
+            builder = setName.invoke(builder, name + "-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("virtual threads need JDK 21 or later, running on "
+                    + System.getProperty("java.version"), e);
+        }
+    }
+}
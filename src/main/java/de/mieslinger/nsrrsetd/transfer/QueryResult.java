@@ -23,13 +23,9 @@
  */
 package de.mieslinger.nsrrsetd.transfer;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
-import org.xbill.DNS.NSRecord;
-import org.xbill.DNS.RRset;
-import org.xbill.DNS.Record;
-import org.xbill.DNS.SetResponse;
-import org.xbill.DNS.Type;
+import java.util.Map;
 
 /**
  *
@@ -37,17 +33,26 @@ import org.xbill.DNS.Type;
  */
 public class QueryResult {
 
+    private String zone;
     private long queryTime;
     private String status; // NXDomain; Delegated; Error
-    private List<RRset> listRRset; // NULL if NXDomain or Error
-    private List<String> rrSet = new LinkedList<String>();
+    private String delegation; // owner of rrSet, zone or the cut enclosing it
+    private List<String> rrSet = new ArrayList<String>();
+    private Map<String, List<String>> glue; // NULL if there is none
+    private long ttl;
     private String queriedServer;
+    private String answeredServer;
+    private int serversTried;
     private String diagnostics;
-    private String SetResponse;
+    private boolean cached;
 
     public QueryResult() {
     }
 
+    public void setZone(String zone) {
+        this.zone = zone;
+    }
+
     public void setQueryTime(long queryTime) {
         this.queryTime = queryTime;
     }
@@ -56,29 +61,41 @@ public class QueryResult {
         this.status = status;
     }
 
-    public void setNsServers(SetResponse sr) {
+    public void setRrSet(List<String> rrSet) {
+        this.rrSet = rrSet;
+    }
 
-        for (Record r : sr.getNS().rrs()) {
-            System.out.format("\n\nRecord: %s\n\n", r.toString());
-            if (r.getType() == Type.NS) {
-                NSRecord nsr = (NSRecord) r;
-                System.out.format("\n\nAddtionalName: %s\n\n", nsr.getAdditionalName().toString(true));
-                System.out.format("\n\nTarget: %s\n\n", nsr.getTarget().toString(true));
-                System.out.format("\n\nrdataToString: %s\n\n", nsr.rdataToString());
-                System.out.format("\n\ngetName: %s\n\n", nsr.getName().toString(true));
-                rrSet.add(nsr.getTarget().toString(true));
-            }
-        }
+    public void setDelegation(String delegation) {
+        this.delegation = delegation;
+    }
 
-        for (String s : rrSet) {
-            System.out.format("\n\nrrSet Record: %s\n\n", s);
-        }
+    public void setGlue(Map<String, List<String>> glue) {
+        this.glue = glue;
+    }
+
+    /**
+     * @param ttl seconds the answer is still valid
+     */
+    public void setTtl(long ttl) {
+        this.ttl = ttl;
+    }
+
+    public void setCached(boolean cached) {
+        this.cached = cached;
     }
 
     public void setQueriedServer(String queriedServer) {
         this.queriedServer = queriedServer;
     }
 
+    public void setAnsweredServer(String answeredServer) {
+        this.answeredServer = answeredServer;
+    }
+
+    public void setServersTried(int serversTried) {
+        this.serversTried = serversTried;
+    }
+
     public void setDiagnostics(String diagnostics) {
         this.diagnostics = diagnostics;
     }
@@ -87,4 +104,51 @@ public class QueryResult {
         return status;
     }
 
+    public String getZone() {
+        return zone;
+    }
+
+    public long getQueryTime() {
+        return queryTime;
+    }
+
+    public List<String> getRrSet() {
+        return rrSet;
+    }
+
+    public String getDelegation() {
+        return delegation;
+    }
+
+    /**
+     * @return addresses by nameserver host, null if there is no glue
+     */
+    public Map<String, List<String>> getGlue() {
+        return glue;
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+
+    public String getQueriedServer() {
+        return queriedServer;
+    }
+
+    public String getAnsweredServer() {
+        return answeredServer;
+    }
+
+    public int getServersTried() {
+        return serversTried;
+    }
+
+    public String getDiagnostics() {
+        return diagnostics;
+    }
+
+    public boolean isCached() {
+        return cached;
+    }
+
 }
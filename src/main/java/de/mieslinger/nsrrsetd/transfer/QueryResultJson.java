@@ -0,0 +1,259 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 mieslingert.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.mieslinger.nsrrsetd.transfer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes a QueryResult as JSON, with the same fields and order as Gson,
+ * straight into a byte buffer kept per thread.
+ *
+ * No reflection and no garbage once the buffer has grown to the size of
+ * a typical answer: strings are escaped and UTF-8 encoded char by char,
+ * numbers are written digit by digit. Escaping follows Gson's default,
+ * HTML-safe one: {@code < > & = '} and U+2028/U+2029 become unicode
+ * escapes, the usual control characters get their short escapes.
+ *
+ * <pre>
+ * QueryResultJson.get().write(qr).writeTo(response.getOutputStream());
+ * </pre>
+ *
+ * @author mieslingert
+ */
+public final class QueryResultJson {
+
+    private static final ThreadLocal<QueryResultJson> BUFFERS = ThreadLocal.withInitial(QueryResultJson::new);
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    private byte[] buf = new byte[1024];
+    private int len;
+    private boolean first;
+
+    private QueryResultJson() {
+    }
+
+    /**
+     * @return this thread's buffer, emptied
+     */
+    public static QueryResultJson get() {
+        QueryResultJson json = BUFFERS.get();
+        json.clear();
+        return json;
+    }
+
+    /**
+     * Appends qr as one JSON object, null fields are left out.
+     */
+    public QueryResultJson write(QueryResult qr) {
+        first = true;
+        put('{');
+        field("zone", qr.getZone());
+        field("queryTime", qr.getQueryTime());
+        field("status", qr.getStatus());
+        field("delegation", qr.getDelegation());
+        List<String> rrSet = qr.getRrSet();
+        if (rrSet != null) {
+            name("rrSet");
+            array(rrSet);
+        }
+        Map<String, List<String>> glue = qr.getGlue();
+        if (glue != null) {
+            name("glue");
+            put('{');
+            boolean firstHost = true;
+            for (Map.Entry<String, List<String>> e : glue.entrySet()) {
+                if (!firstHost) {
+                    put(',');
+                }
+                firstHost = false;
+                string(e.getKey());
+                put(':');
+                array(e.getValue());
+            }
+            put('}');
+        }
+        field("ttl", qr.getTtl());
+        field("queriedServer", qr.getQueriedServer());
+        field("answeredServer", qr.getAnsweredServer());
+        field("serversTried", qr.getServersTried());
+        field("diagnostics", qr.getDiagnostics());
+        name("cached");
+        ascii(qr.isCached() ? "true" : "false");
+        put('}');
+        return this;
+    }
+
+    public void clear() {
+        len = 0;
+    }
+
+    public QueryResultJson newline() {
+        put('\n');
+        return this;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buf, 0, len);
+    }
+
+    public int length() {
+        return len;
+    }
+
+    private void field(String name, String value) {
+        if (value != null) {
+            name(name);
+            string(value);
+        }
+    }
+
+    private void field(String name, long value) {
+        name(name);
+        number(value);
+    }
+
+    private void name(String name) {
+        if (!first) {
+            put(',');
+        }
+        first = false;
+        put('"');
+        ascii(name);
+        put('"');
+        put(':');
+    }
+
+    private void array(List<String> values) {
+        put('[');
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0) {
+                put(',');
+            }
+            string(values.get(i));
+        }
+        put(']');
+    }
+
+    private void string(String s) {
+        ensure(s.length() * 6 + 2);
+        buf[len++] = '"';
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                buf[len++] = '\\';
+                buf[len++] = (byte) c;
+            } else if (c < 0x20 || c == '<' || c == '>' || c == '&' || c == '=' || c == '\'' || c == 0x2028 || c == 0x2029) {
+                escape(c);
+            } else if (c < 0x80) {
+                buf[len++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[len++] = (byte) (0xC0 | (c >> 6));
+                buf[len++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buf[len++] = (byte) (0xF0 | (cp >> 18));
+                buf[len++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                buf[len++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                buf[len++] = (byte) (0x80 | (cp & 0x3F));
+            } else {
+                buf[len++] = (byte) (0xE0 | (c >> 12));
+                buf[len++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buf[len++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        buf[len++] = '"';
+    }
+
+    private void escape(char c) {
+        buf[len++] = '\\';
+        switch (c) {
+            case '\t':
+                buf[len++] = 't';
+                return;
+            case '\b':
+                buf[len++] = 'b';
+                return;
+            case '\n':
+                buf[len++] = 'n';
+                return;
+            case '\r':
+                buf[len++] = 'r';
+                return;
+            case '\f':
+                buf[len++] = 'f';
+                return;
+            default:
+                buf[len++] = 'u';
+                buf[len++] = HEX[c >> 12];
+                buf[len++] = HEX[(c >> 8) & 0xF];
+                buf[len++] = HEX[(c >> 4) & 0xF];
+                buf[len++] = HEX[c & 0xF];
+        }
+    }
+
+    private void number(long v) {
+        ensure(20);
+        if (v == Long.MIN_VALUE) {
+            ascii("-9223372036854775808");
+            return;
+        }
+        if (v < 0) {
+            buf[len++] = '-';
+            v = -v;
+        }
+        int start = len;
+        do {
+            buf[len++] = (byte) ('0' + v % 10);
+            v /= 10;
+        } while (v > 0);
+        // digits came out backwards
+        for (int i = start, j = len - 1; i < j; i++, j--) {
+            byte t = buf[i];
+            buf[i] = buf[j];
+            buf[j] = t;
+        }
+    }
+
+    private void ascii(String s) {
+        ensure(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            buf[len++] = (byte) s.charAt(i);
+        }
+    }
+
+    private void put(char c) {
+        ensure(1);
+        buf[len++] = (byte) c;
+    }
+
+    private void ensure(int n) {
+        if (len + n > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + n));
+        }
+    }
+}